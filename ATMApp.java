@@ -2,11 +2,38 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Enhanced ATM Simulator
@@ -19,14 +46,127 @@ import java.util.List;
  * - Session timeout (auto-logout)
  * - Multi-language (English/Hindi)
  *
+ * - Primary-backup replication with read-only followers (see ReplicationNode)
+ * - End-of-day settlement of per-account and global control totals (see SettlementJob)
+ * - Hash-chained audit log for admin and security events (see AuditLog)
+ * - Per-terminal / per-card rate limits and load shedding (see AdmissionControl)
+ * - Bulk card import from CSV or binary files (see BulkLoader)
+ * - Lock-free read models for balance inquiries and admin dashboards (see ReadModels)
+ * - Allocation-free deposit / withdraw path for headless drivers (see HotPath)
+ * - Bounded hot set of cards over a memory-mapped cold store (see TieredAccountStore)
+ * - Transaction alerts to the profile phone/email through pluggable sinks (see Notifier)
+ * - Two-phase-commit transfers across shards with durable, authenticated votes (see TransferCoordinator)
+ *
  * Test accounts:
  *  - 12345678 -> PIN 1234 (Savings+Current)
  *  - 87654321 -> PIN 4321 (Savings+Current)
  *  - 00000000 -> PIN 0000 (Admin)
+ *
+ * Options:
+ *  --primary <port>          stream account mutations to followers on this loopback port
+ *  --follow <host:port>      run as a read-only follower of that primary
+ *  --repl-port <port>        (follower) port to serve replication on once promoted
+ *  --auto-promote            (follower) promote when the primary goes silent
+ *  --control <port>          serve the line-based control/query port
+ *  --headless                do not open the GUI
+ *  --audit-key <file>        HMAC key for audit checkpoints (ATM_AUDIT_KEY takes precedence)
+ *  --verify-audit <file>     verify an audit log's hash chain and checkpoints, then exit
+ *  --import <file>           bulk-load cards from CSV or .atmb before anything else starts
+ *  --gen-cards <n> <file>    write a synthetic n-card import file (CSV or .atmb), then exit
+ *  --no-read-models          serve balance and admin queries from the account model directly
+ *  --hot-cards <n>           keep at most n cards on heap, the rest in the cold store
+ *  --bench-hotpath <ops>     time <ops> pooled deposit/withdraw/transfer-out operations on a throwaway
+ *                            card, then exit (non-zero if bytes/op exceeds the limit)
+ *  --bench-max-bytes <n>     bytes/op limit for --bench-hotpath (default: the history entry + 8, checked
+ *                            only without listeners)
+ *  --notify <sink>[,<sink>]  send transaction alerts through these sinks: file, smtp-mock
+ *  --shard <prefix>=<host:port>  route cards with this prefix to the node on that control port
+ *  --tx-peer <node>=<host:port>  accept two-phase calls from coordinator <node>, reached on that port
+ *                            (both need ATM_TX_SECRET shared by the nodes; name each node with -Datm.node)
+ *  --selftest                crash a transfer participant after PREPARE and after COMMIT, check
+ *                            that recovery conserves balances, then exit (non-zero on failure)
  */
 public class ATMApp {
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(LoginScreen::new);
+        boolean headless = false;
+        try {
+            String follow = null;
+            Path importFile = null;
+            boolean readModels = true;
+            String notify = null;
+            int benchOps = 0;
+            double benchMaxBytes = Double.NaN;
+            int primaryPort = -1, replPort = -1, controlPort = -1;
+            boolean autoPromote = false;
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--primary": primaryPort = Integer.parseInt(args[++i]); break;
+                    case "--follow": follow = args[++i]; break;
+                    case "--repl-port": replPort = Integer.parseInt(args[++i]); break;
+                    case "--auto-promote": autoPromote = true; break;
+                    case "--control": controlPort = Integer.parseInt(args[++i]); break;
+                    case "--headless": headless = true; break;
+                    case "--audit-key": AuditLog.setKeyFile(Paths.get(args[++i])); break;
+                    case "--verify-audit":
+                        String report = AuditLog.verify(Paths.get(args[++i]));
+                        System.out.println(report);
+                        System.exit(report.startsWith("VALID") ? 0 : 1);
+                        break;
+                    case "--import": importFile = Paths.get(args[++i]); break;
+                    case "--no-read-models": readModels = false; break;
+                    case "--notify": notify = args[++i]; break;
+                    case "--selftest":
+                        String result = TransferSelfTest.run();
+                        System.out.println(result);
+                        System.exit(result.startsWith("PASS") ? 0 : 1);
+                        break;
+                    case "--bench-hotpath": benchOps = Integer.parseInt(args[++i]); break;
+                    case "--bench-max-bytes": benchMaxBytes = Double.parseDouble(args[++i]); break;
+                    case "--hot-cards": LoginScreen.ACCOUNT_MODELS.setCapacity(Integer.parseInt(args[++i])); break;
+                    case "--shard": {
+                        String spec = args[++i]; // <cardPrefix>=<host:controlPort>
+                        int eq = spec.indexOf('=');
+                        TransferCoordinator.addShard(spec.substring(0, eq), spec.substring(eq + 1));
+                        break;
+                    }
+                    case "--tx-peer": {
+                        String spec = args[++i]; // <node>=<host:controlPort>
+                        int eq = spec.indexOf('=');
+                        TxAuth.addPeer(spec.substring(0, eq), spec.substring(eq + 1));
+                        break;
+                    }
+                    case "--gen-cards":
+                        long n = Long.parseLong(args[++i]);
+                        BulkLoader.generate(Paths.get(args[++i]), n);
+                        System.exit(0);
+                        break;
+                    default:
+                        System.err.println("Unknown option: " + args[i]);
+                        System.exit(2);
+                }
+            }
+            if (importFile != null) System.out.println(BulkLoader.load(importFile).summary());
+            if (readModels) ReadModels.start();
+            LocalParticipant.recoverIfNeeded();
+            if (notify != null) Notifier.start(Notifier.sinks(notify));
+            if (benchOps > 0) {
+                String result = HotPath.bench(benchOps, benchMaxBytes);
+                System.out.println(result);
+                System.exit(result.startsWith("PASS") ? 0 : 1);
+            }
+            if (primaryPort > 0) ReplicationNode.startPrimary(primaryPort);
+            if (follow != null) {
+                int colon = follow.lastIndexOf(':');
+                ReplicationNode.startFollower(follow.substring(0, colon), Integer.parseInt(follow.substring(colon + 1)),
+                        replPort, autoPromote);
+            }
+            if (controlPort > 0) new ControlServer(controlPort);
+            TransferCoordinator.recoverIfNeeded();
+        } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+            System.err.println("Startup failed: " + ex);
+            System.exit(1);
+        }
+        if (!headless) SwingUtilities.invokeLater(LoginScreen::new);
     }
 }
 
@@ -85,6 +225,9 @@ class Texts {
         en.put("insert_card", "Insert Card (Click)");
         en.put("masked_card", "**** **** ");
         en.put("admin_prompt", "Admin: Enter card to unlock:");
+        en.put("read_only", "Read-only replica: transactions disabled.");
+        en.put("busy", "System busy. Please try again.");
+        en.put("rate_limited", "Too many requests. Please wait a moment.");
         TEXT.put(Lang.EN, en);
 
         Map<String, String> hi = new HashMap<>();
@@ -134,6 +277,9 @@ class Texts {
         hi.put("insert_card", "कार्ड डालें (क्लिक करें)");
         hi.put("masked_card", "**** **** ");
         hi.put("admin_prompt", "एडमिन: अनलॉक करने के लिए कार्ड दर्ज करें:");
+        hi.put("read_only", "केवल-पढ़ने वाली प्रतिकृति: लेनदेन बंद हैं।");
+        hi.put("busy", "सिस्टम व्यस्त है। कृपया पुनः प्रयास करें।");
+        hi.put("rate_limited", "बहुत अधिक अनुरोध। कृपया थोड़ा रुकें।");
         TEXT.put(Lang.HI, hi);
     }
 
@@ -141,18 +287,114 @@ class Texts {
     public static String t(String key) { return TEXT.get(lang).getOrDefault(key, key); }
 }
 
+/* ---------- Account events ---------- */
+enum AccountOp { CREATED, DEPOSIT, WITHDRAW, TRANSFER_OUT, TRANSFER_IN, INTEREST, NOTE, PIN_CHANGED, PROFILE, LOCKED, UNLOCKED }
+
+/*
+ * One committed mutation. Account-level ops carry the account type, its version after the
+ * mutation and the history line written; card-level ops (CREATED, PIN_CHANGED, PROFILE,
+ * LOCKED, UNLOCKED) have accountType == null and keep their payload in detail. No event carries a
+ * PIN: CREATED and PIN_CHANGED carry ATMImplementation.pinVerifier(). CREATED's detail is that
+ * followed by one "type=openingBalance" line per account, so listeners can build the card without
+ * looking it up (it is published before the card is registered).
+ */
+class AccountEvent {
+    public final String card;
+    public final String accountType;
+    public final AccountOp op;
+    public final double amount;
+    public final double balanceAfter;
+    public final long version;
+    public final String detail; // counterparty, PIN hash, profile or CREATED's payload, depending on op
+    private String line;        // history line as written on the primary, see line()
+    public final long timeMillis;
+
+    public AccountEvent(String card, String accountType, AccountOp op, double amount, double balanceAfter,
+                        long version, String detail, String line, long timeMillis) {
+        this.card = card;
+        this.accountType = accountType;
+        this.op = op;
+        this.amount = amount;
+        this.balanceAfter = balanceAfter;
+        this.version = version;
+        this.detail = detail;
+        this.line = line;
+        this.timeMillis = timeMillis;
+    }
+
+    // rendered on first use: only replication needs the text, other listeners never pay for it
+    public String line() {
+        if (line == null && accountType != null) {
+            line = AccountType.History.renderLine(op, accountType, timeMillis, amount, balanceAfter, detail);
+        }
+        return line;
+    }
+
+    static AccountEvent forCard(String card, AccountOp op, String detail) {
+        return new AccountEvent(card, null, op, 0, 0, 0, detail, null, System.currentTimeMillis());
+    }
+
+    // CREATED: the PIN hash line
+    String createdPin() {
+        int nl = detail.indexOf('\n');
+        return nl < 0 ? detail : detail.substring(0, nl);
+    }
+
+    // CREATED: account type -> opening balance
+    Map<String, Double> createdBalances() {
+        Map<String, Double> m = new LinkedHashMap<>(4);
+        String[] lines = detail.split("\n");
+        for (int i = 1; i < lines.length; i++) {
+            int eq = lines[i].indexOf('=');
+            if (eq > 0) m.put(lines[i].substring(0, eq), Double.parseDouble(lines[i].substring(eq + 1)));
+        }
+        return m;
+    }
+}
+
+interface AccountListener {
+    // called while the mutated account's monitor is held: must be quick and must not block
+    void onEvent(AccountEvent e);
+}
+
+class AccountEvents {
+    private static final List<AccountListener> LISTENERS = new CopyOnWriteArrayList<>();
+
+    public static void subscribe(AccountListener l) { LISTENERS.add(l); }
+    public static void unsubscribe(AccountListener l) { LISTENERS.remove(l); }
+    public static boolean active() { return !LISTENERS.isEmpty(); }
+
+    public static void publish(AccountEvent e) {
+        for (AccountListener l : LISTENERS) l.onEvent(e);
+    }
+}
+
 /* ---------- Account model ---------- */
 class AccountType {
     public final String typeName;
     private double balance;
     private double overdraftLimit; // e.g., allow negative balance to -overdraftLimit
-    private final ArrayList<String> history = new ArrayList<>();
+    private History history; // created on first use, see history()
+    private final double openingBalance;
     private double monthlyInterestPercent; // simple monthly interest for savings
 
+    // Two-phase transfers: amounts held for prepared outgoing transfers (txId -> amount)
+    private Map<String, Double> reservations;
+    private double reserved = 0;
+
+    // Replication: owning card and a counter bumped on every committed mutation
+    private String owner;
+    private long version = 0;
+
+    // set once this object has been written to the cold tier; later writes must reach the store.
+    // holder keeps the card object alive for as long as anyone still holds one of its accounts.
+    volatile boolean retired;
+    private ATMImplementation holder;
+
     // Daily tracking
     private double dailyWithdrawn = 0;
     private double dailyTransferred = 0;
-    private LocalDate lastReset = LocalDate.now();
+    private LocalDate lastReset = currentDay();
 
     public static final double DEFAULT_DAILY_WITHDRAW_LIMIT = 20000;
     public static final double DEFAULT_DAILY_TRANSFER_LIMIT = 50000;
@@ -160,71 +402,425 @@ class AccountType {
     private double dailyWithdrawLimit = DEFAULT_DAILY_WITHDRAW_LIMIT;
     private double dailyTransferLimit = DEFAULT_DAILY_TRANSFER_LIMIT;
 
+    // Settlement control totals for the current and the previous active day
+    // (created on the first mutation of a day, so idle accounts carry none)
+    private DayControl today;
+    private DayControl previousDay;
+
     public AccountType(String typeName, double initialBalance, double overdraftLimit, double monthlyInterestPercent) {
         this.typeName = typeName;
         this.balance = initialBalance;
         this.overdraftLimit = overdraftLimit;
         this.monthlyInterestPercent = monthlyInterestPercent;
-        history.add("Account (" + typeName + ") created: ₹" + initialBalance);
+        this.openingBalance = initialBalance;
+    }
+
+    // deferred so that bulk-loaded accounts cost nothing until someone looks at them
+    private History history() {
+        if (history == null) {
+            history = new History();
+            history.add(AccountOp.CREATED, 0, openingBalance, openingBalance, null);
+        }
+        return history;
+    }
+
+    /*
+     * Account history, primitive-encoded: per entry the op and time packed into one long, then the
+     * amount and the resulting balance. Only notes, counterparties and replicated lines keep a
+     * String. Lines are rendered when the history is read, so a deposit or withdrawal builds no text.
+     * Storage grows in fixed chunks; nothing is copied as it grows.
+     */
+    static final class History {
+        private static final int CHUNK_BITS = 8, CHUNK = 1 << CHUNK_BITS, MASK = CHUNK - 1;
+        private static final int RAW = 0xFF; // verbatim line (replicated or imported)
+        private static final long TIME_MASK = (1L << 56) - 1;
+        static final int ENTRY_BYTES = 8 + 8 + 8;
+        private static final AccountOp[] OPS = AccountOp.values();
+
+        private long[][] opTime = new long[1][];
+        private double[][] values = new double[1][]; // amount, balance
+        private Map<Integer, String> texts;          // entry -> text, only for entries that carry one
+        private int size;
+
+        void add(AccountOp op, long timeMillis, double amount, double balance, String text) {
+            append(op.ordinal(), timeMillis, amount, balance, text);
+        }
+
+        void addRaw(String line) { append(RAW, 0, 0, 0, line); }
+
+        private void append(int code, long timeMillis, double amount, double balance, String text) {
+            int chunk = size >>> CHUNK_BITS, slot = size & MASK;
+            if (slot == 0) {
+                if (chunk == opTime.length) {
+                    opTime = Arrays.copyOf(opTime, chunk * 2);
+                    values = Arrays.copyOf(values, chunk * 2);
+                }
+                opTime[chunk] = new long[CHUNK];
+                values[chunk] = new double[CHUNK * 2];
+            }
+            opTime[chunk][slot] = ((long) code << 56) | (timeMillis & TIME_MASK);
+            values[chunk][slot * 2] = amount;
+            values[chunk][slot * 2 + 1] = balance;
+            if (text != null) {
+                if (texts == null) texts = new HashMap<>();
+                texts.put(size, text);
+            }
+            size++;
+        }
+
+        int size() { return size; }
+
+        String render(int i, String typeName) {
+            long ot = opTime[i >>> CHUNK_BITS][i & MASK];
+            int code = (int) (ot >>> 56);
+            String text = texts == null ? null : texts.get(i);
+            if (code == RAW) return text;
+            return renderLine(OPS[code], typeName, ot & TIME_MASK, values[i >>> CHUNK_BITS][(i & MASK) * 2],
+                    values[i >>> CHUNK_BITS][(i & MASK) * 2 + 1], text);
+        }
+
+        static String renderLine(AccountOp op, String typeName, long timeMillis, double amt, double bal, String text) {
+            String stamp = STAMP.format(Instant.ofEpochMilli(timeMillis));
+            switch (op) {
+                case CREATED: return "Account (" + typeName + ") created: ₹" + amt;
+                case DEPOSIT: return stamp + " Deposited: ₹" + amt + " | Balance: ₹" + bal;
+                case WITHDRAW: return stamp + " Withdrawn: ₹" + amt + " | Balance: ₹" + bal;
+                case TRANSFER_OUT: return stamp + " Transferred out: ₹" + amt + " | Balance: ₹" + bal;
+                case TRANSFER_IN: return stamp + " Received ₹" + amt + " from " + text + " | Balance: ₹" + bal;
+                case INTEREST: return stamp + " Interest applied: ₹" + String.format("%.2f", amt);
+                default: return stamp + " " + text;
+            }
+        }
+
+        void writeTo(DataOutput out) throws IOException {
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeLong(opTime[i >>> CHUNK_BITS][i & MASK]);
+                out.writeDouble(values[i >>> CHUNK_BITS][(i & MASK) * 2]);
+                out.writeDouble(values[i >>> CHUNK_BITS][(i & MASK) * 2 + 1]);
+            }
+            out.writeInt(texts == null ? 0 : texts.size());
+            if (texts != null) {
+                for (Map.Entry<Integer, String> e : texts.entrySet()) {
+                    out.writeInt(e.getKey());
+                    out.writeUTF(e.getValue());
+                }
+            }
+        }
+
+        static History readFrom(DataInput in) throws IOException {
+            History h = new History();
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                long ot = in.readLong();
+                h.append((int) (ot >>> 56), ot & TIME_MASK, in.readDouble(), in.readDouble(), null);
+            }
+            int t = in.readInt();
+            if (t > 0) h.texts = new HashMap<>(t * 2);
+            for (int i = 0; i < t; i++) h.texts.put(in.readInt(), in.readUTF());
+            return h;
+        }
+
+        List<String> render(String typeName, int from) {
+            List<String> out = new ArrayList<>(size - from);
+            for (int i = from; i < size; i++) out.add(render(i, typeName));
+            return out;
+        }
+    }
+
+    static final DateTimeFormatter STAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
+    // today's date without allocating: recomputed once when the day rolls over
+    private static final class DayWindow {
+        final LocalDate day;
+        final long endMillis;
+
+        DayWindow(LocalDate day) {
+            this.day = day;
+            this.endMillis = day.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+    }
+
+    private static volatile DayWindow dayWindow = new DayWindow(LocalDate.now());
+
+    static LocalDate currentDay() {
+        DayWindow w = dayWindow;
+        if (System.currentTimeMillis() >= w.endMillis) dayWindow = w = new DayWindow(LocalDate.now());
+        return w.day;
+    }
+
+    void bindOwner(ATMImplementation impl) {
+        this.owner = impl.getCardNumber();
+        this.holder = impl;
     }
 
     private void resetDailyIfNeeded() {
-        LocalDate now = LocalDate.now();
-        if (!now.equals(lastReset)) {
+        LocalDate now = currentDay();
+        if (now != lastReset && !now.equals(lastReset)) {
+            if (today != null) {
+                today.closing = balance;
+                today.dailyWithdrawn = dailyWithdrawn;
+                today.dailyTransferred = dailyTransferred;
+                today.version = version;
+                previousDay = today;
+                today = null;
+            }
             dailyWithdrawn = 0;
             dailyTransferred = 0;
             lastReset = now;
         }
     }
 
+    private void beginMutation() {
+        resetDailyIfNeeded();
+        if (today == null) today = new DayControl(lastReset, balance);
+    }
+
+    private void tally(AccountOp op, double amt, String detail) {
+        switch (op) {
+            case DEPOSIT: today.deposits += amt; break;
+            case WITHDRAW: today.withdrawals += amt; break;
+            case TRANSFER_OUT: today.transfersOut += amt; break;
+            case TRANSFER_IN:
+                if ("BankLoan".equals(detail)) today.loans += amt; else today.transfersIn += amt;
+                break;
+            case INTEREST: today.interest += amt; break;
+            default: break;
+        }
+    }
+
+    // record a committed mutation: history entry, version bump, event to listeners
+    private void commit(AccountOp op, double amt, String detail) {
+        tally(op, amt, detail);
+        long now = System.currentTimeMillis();
+        history().add(op, now, amt, balance, op == AccountOp.TRANSFER_IN || op == AccountOp.NOTE ? detail : null);
+        version++;
+        if (retired) TieredAccountStore.retiredWrite(holder);
+        if (owner != null && AccountEvents.active()) {
+            AccountEvents.publish(new AccountEvent(owner, typeName, op, amt, balance, version, detail, null, now));
+        }
+    }
+
     public synchronized double getBalance() {
         return balance;
     }
 
+    // largest single movement accepted; keeps balances and day totals well inside exact cents
+    static final double MAX_AMOUNT = 1e12;
+
+    // positive, finite and bounded: NaN or Infinity would poison the balance and every total built on it
+    static boolean validAmount(double amt) {
+        return amt > 0 && amt <= MAX_AMOUNT;
+    }
+
     public synchronized boolean deposit(double amt) {
-        if (amt <= 0) return false;
+        if (ReplicationNode.isReadOnly()) return false;
+        beginMutation();
+        if (!validAmount(amt)) return false;
         balance += amt;
-        history.add(nowStamp() + " Deposited: ₹" + amt + " | Balance: ₹" + balance);
+        commit(AccountOp.DEPOSIT, amt, null);
         return true;
     }
 
     public synchronized boolean withdraw(double amt) {
-        resetDailyIfNeeded();
-        if (amt <= 0) return false;
+        if (ReplicationNode.isReadOnly()) return false;
+        beginMutation();
+        if (!validAmount(amt)) return false;
         if (dailyWithdrawn + amt > dailyWithdrawLimit) return false;
-        if (balance - amt < -overdraftLimit) return false;
+        if (balance - reserved - amt < -overdraftLimit) return false;
         balance -= amt;
         dailyWithdrawn += amt;
-        history.add(nowStamp() + " Withdrawn: ₹" + amt + " | Balance: ₹" + balance);
+        commit(AccountOp.WITHDRAW, amt, null);
         return true;
     }
 
     public synchronized boolean transferOut(double amt) {
-        resetDailyIfNeeded();
-        if (amt <= 0) return false;
-        if (dailyTransferred + amt > dailyTransferLimit) return false;
-        if (balance - amt < -overdraftLimit) return false;
+        if (ReplicationNode.isReadOnly()) return false;
+        beginMutation();
+        if (!validAmount(amt)) return false;
+        if (dailyTransferred + reserved + amt > dailyTransferLimit) return false;
+        if (balance - reserved - amt < -overdraftLimit) return false;
         balance -= amt;
         dailyTransferred += amt;
-        history.add(nowStamp() + " Transferred out: ₹" + amt + " | Balance: ₹" + balance);
+        commit(AccountOp.TRANSFER_OUT, amt, null);
         return true;
     }
 
     public synchronized void receiveTransfer(double amt, String fromCard) {
+        if (ReplicationNode.isReadOnly()) return;
+        beginMutation();
         balance += amt;
-        history.add(nowStamp() + " Received ₹" + amt + " from " + fromCard + " | Balance: ₹" + balance);
+        commit(AccountOp.TRANSFER_IN, amt, fromCard);
+    }
+
+    /*
+     * Prepare phase of an outgoing transfer: hold the amount against balance and the daily
+     * transfer limit without moving it. Repeating a txId is a no-op.
+     */
+    public synchronized boolean reserve(String txId, double amt) {
+        if (ReplicationNode.isReadOnly()) return false;
+        resetDailyIfNeeded();
+        if (reservations != null && reservations.containsKey(txId)) return true;
+        if (!validAmount(amt)) return false;
+        if (dailyTransferred + reserved + amt > dailyTransferLimit) return false;
+        if (balance - reserved - amt < -overdraftLimit) return false;
+        if (reservations == null) reservations = new HashMap<>();
+        reservations.put(txId, amt);
+        reserved += amt;
+        return true;
+    }
+
+    // commit phase: turn the reservation into the actual transfer out; false if not held
+    public synchronized boolean commitReservation(String txId) {
+        Double amt = reservations == null ? null : reservations.remove(txId);
+        if (amt == null) return false;
+        reserved -= amt;
+        beginMutation();
+        balance -= amt;
+        dailyTransferred += amt;
+        commit(AccountOp.TRANSFER_OUT, amt, null);
+        return true;
+    }
+
+    public synchronized boolean releaseReservation(String txId) {
+        Double amt = reservations == null ? null : reservations.remove(txId);
+        if (amt == null) return false;
+        reserved -= amt;
+        return true;
     }
 
-    public List<String> getHistory() { return history; }
+    public synchronized List<String> getHistory() { return history().render(typeName, 0); }
+
+    // the last n lines only: mini statements render five entries, not the whole history
+    public synchronized List<String> getHistory(int last) {
+        History h = history();
+        return h.render(typeName, Math.max(0, h.size() - last));
+    }
 
-    public void addHistory(String s) { history.add(nowStamp() + " " + s); }
+    public synchronized void addHistory(String s) {
+        if (ReplicationNode.isReadOnly()) return;
+        commit(AccountOp.NOTE, 0, s);
+    }
 
-    public void applyMonthlyInterest() {
+    public synchronized void applyMonthlyInterest() {
+        if (ReplicationNode.isReadOnly()) return;
+        beginMutation();
         if (monthlyInterestPercent > 0) {
             double interest = balance * (monthlyInterestPercent / 100.0);
             balance += interest;
-            history.add(nowStamp() + " Interest applied: ₹" + String.format("%.2f", interest));
+            commit(AccountOp.INTEREST, interest, null);
+        }
+    }
+
+    /* Replicated state, copied under the account monitor. */
+    static class State {
+        long version;
+        double balance;
+        double dailyWithdrawn;
+        double dailyTransferred;
+        List<String> history;
+    }
+
+    synchronized State exportState() { return exportState(true); }
+
+    synchronized State exportState(boolean withHistory) {
+        resetDailyIfNeeded();
+        State st = new State();
+        st.version = version;
+        st.balance = balance;
+        st.dailyWithdrawn = dailyWithdrawn;
+        st.dailyTransferred = dailyTransferred;
+        st.history = withHistory ? history().render(typeName, 0) : Collections.emptyList();
+        return st;
+    }
+
+    synchronized void importState(State st) {
+        resetDailyIfNeeded();
+        version = st.version;
+        balance = st.balance;
+        dailyWithdrawn = st.dailyWithdrawn;
+        dailyTransferred = st.dailyTransferred;
+        // control totals restart at the snapshot: what happened before it is the primary's to settle
+        today = null;
+        previousDay = null;
+        history = new History();
+        for (String line : st.history) history.addRaw(line);
+    }
+
+    /* Full state for the cold tier of TieredAccountStore; pending reservations are not included. */
+    synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(typeName);
+        out.writeDouble(openingBalance);
+        out.writeDouble(balance);
+        out.writeDouble(overdraftLimit);
+        out.writeDouble(monthlyInterestPercent);
+        out.writeLong(version);
+        out.writeDouble(dailyWithdrawn);
+        out.writeDouble(dailyTransferred);
+        out.writeLong(lastReset.toEpochDay());
+        out.writeDouble(dailyWithdrawLimit);
+        out.writeDouble(dailyTransferLimit);
+        writeDay(out, today);
+        writeDay(out, previousDay);
+        out.writeBoolean(history != null);
+        if (history != null) history.writeTo(out);
+    }
+
+    static AccountType readFrom(DataInput in, ATMImplementation owner) throws IOException {
+        String typeName = in.readUTF();
+        AccountType acc = new AccountType(typeName, in.readDouble(), 0, 0);
+        acc.balance = in.readDouble();
+        acc.overdraftLimit = in.readDouble();
+        acc.monthlyInterestPercent = in.readDouble();
+        acc.version = in.readLong();
+        acc.dailyWithdrawn = in.readDouble();
+        acc.dailyTransferred = in.readDouble();
+        acc.lastReset = LocalDate.ofEpochDay(in.readLong());
+        acc.dailyWithdrawLimit = in.readDouble();
+        acc.dailyTransferLimit = in.readDouble();
+        acc.today = readDay(in);
+        acc.previousDay = readDay(in);
+        if (in.readBoolean()) acc.history = History.readFrom(in);
+        acc.bindOwner(owner);
+        return acc;
+    }
+
+    private static void writeDay(DataOutput out, DayControl d) throws IOException {
+        out.writeBoolean(d != null);
+        if (d == null) return;
+        out.writeLong(d.date.toEpochDay());
+        for (double v : new double[] {d.opening, d.closing, d.deposits, d.withdrawals, d.transfersOut, d.transfersIn,
+                d.loans, d.interest, d.dailyWithdrawn, d.dailyTransferred}) {
+            out.writeDouble(v);
         }
+        out.writeLong(d.version);
+    }
+
+    private static DayControl readDay(DataInput in) throws IOException {
+        if (!in.readBoolean()) return null;
+        DayControl d = new DayControl(LocalDate.ofEpochDay(in.readLong()), in.readDouble());
+        d.closing = in.readDouble();
+        d.deposits = in.readDouble(); d.withdrawals = in.readDouble();
+        d.transfersOut = in.readDouble(); d.transfersIn = in.readDouble();
+        d.loans = in.readDouble(); d.interest = in.readDouble();
+        d.dailyWithdrawn = in.readDouble(); d.dailyTransferred = in.readDouble();
+        d.version = in.readLong();
+        return d;
+    }
+
+    synchronized boolean hasReservations() { return reserved != 0 || (reservations != null && !reservations.isEmpty()); }
+
+    // follower side: apply a primary's event; events already covered by a snapshot are skipped
+    synchronized void applyReplicated(AccountEvent e) {
+        if (e.version <= version) return;
+        beginMutation();
+        if (e.op == AccountOp.WITHDRAW) dailyWithdrawn += e.amount;
+        if (e.op == AccountOp.TRANSFER_OUT) dailyTransferred += e.amount;
+        tally(e.op, e.amount, e.detail);
+        balance = e.balanceAfter;
+        history().addRaw(e.line());
+        version = e.version;
+        if (AccountEvents.active()) AccountEvents.publish(e);
     }
 
     public void setDailyLimits(double withdrawLimit, double transferLimit) {
@@ -232,62 +828,212 @@ class AccountType {
         this.dailyTransferLimit = transferLimit;
     }
 
-    private String nowStamp() {
-        return LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm"));
+    public synchronized boolean canWithdrawDaily(double amt) {
+        resetDailyIfNeeded();
+        return (dailyWithdrawn + amt) <= dailyWithdrawLimit && (balance - reserved - amt) >= -overdraftLimit;
     }
 
-    public boolean canWithdrawDaily(double amt) {
+    public synchronized boolean canTransferDaily(double amt) {
         resetDailyIfNeeded();
-        return (dailyWithdrawn + amt) <= dailyWithdrawLimit && (balance - amt) >= -overdraftLimit;
+        return (dailyTransferred + reserved + amt) <= dailyTransferLimit && (balance - reserved - amt) >= -overdraftLimit;
     }
 
-    public boolean canTransferDaily(double amt) {
-        resetDailyIfNeeded();
-        return (dailyTransferred + amt) <= dailyTransferLimit && (balance - amt) >= -overdraftLimit;
+    public synchronized double getDailyWithdrawn() { resetDailyIfNeeded(); return dailyWithdrawn; }
+    public synchronized double getDailyTransferred() { resetDailyIfNeeded(); return dailyTransferred; }
+
+    // day the control totals are currently kept for, and the version the last mutation produced;
+    // read under the monitor together with that mutation
+    synchronized LocalDate controlDay() { return lastReset; }
+    synchronized long version() { return version; }
+
+    /* Per-day control totals kept alongside the balance, read by the settlement batch. */
+    static class DayControl {
+        final LocalDate date;
+        double opening, closing;
+        double deposits, withdrawals, transfersOut, transfersIn, loans, interest;
+        double dailyWithdrawn, dailyTransferred; // limit counters as of closing
+        long version; // account version the totals include (set on copy and at rollover)
+
+        DayControl(LocalDate date, double opening) {
+            this.date = date;
+            this.opening = opening;
+            this.closing = opening;
+        }
+
+        DayControl copy() {
+            DayControl c = new DayControl(date, opening);
+            c.closing = closing;
+            c.deposits = deposits; c.withdrawals = withdrawals;
+            c.transfersOut = transfersOut; c.transfersIn = transfersIn;
+            c.loans = loans; c.interest = interest;
+            c.dailyWithdrawn = dailyWithdrawn; c.dailyTransferred = dailyTransferred;
+            c.version = version;
+            return c;
+        }
+
+        double expectedClosing() {
+            return opening + deposits + transfersIn + loans + interest - withdrawals - transfersOut;
+        }
     }
 
-    public double getDailyWithdrawn() { resetDailyIfNeeded(); return dailyWithdrawn; }
-    public double getDailyTransferred() { resetDailyIfNeeded(); return dailyTransferred; }
+    /*
+     * Control totals for the given day, copied under the monitor without rolling the day over.
+     * A day with no activity on this account reports zero movement at the balance it stood at;
+     * null means the day is older than the two days kept.
+     */
+    synchronized DayControl dayControl(LocalDate day) {
+        // with no DayControl for lastReset, nothing has moved the balance since that day began
+        double startOfLastReset = today != null ? today.opening : balance;
+        DayControl c;
+        if (day.equals(lastReset)) {
+            c = today != null ? today.copy() : new DayControl(day, balance);
+            c.closing = balance;
+            c.dailyWithdrawn = dailyWithdrawn;
+            c.dailyTransferred = dailyTransferred;
+        } else if (day.isAfter(lastReset)) {
+            c = new DayControl(day, balance);
+        } else if (previousDay != null && day.equals(previousDay.date)) {
+            return previousDay.copy(); // closed: carries the version at rollover
+        } else if (previousDay == null || day.isAfter(previousDay.date)) {
+            c = new DayControl(day, startOfLastReset);
+        } else {
+            return null;
+        }
+        c.version = version;
+        return c;
+    }
 }
 
 /* A full ATM implementation for a card (can have multiple account types) */
 class ATMImplementation {
     private final String cardNumber;
-    private final Map<String, AccountType> accounts = new HashMap<>();
-    private final ArrayList<String> profile = new ArrayList<>(); // simple profile storage: phone/email
+    private final Map<String, AccountType> accounts = new HashMap<>(4);
+    private final ArrayList<String> profile = new ArrayList<>(2); // simple profile storage: phone/email
     private String pin;
     private boolean locked = false;
     private int failedAttempts = 0;
+    private volatile boolean retired; // written to the cold tier, see TieredAccountStore
+    static final String PIN_HASH = "sha256:"; // prefix of a replicated PIN, see pinVerifier
 
     public ATMImplementation(String cardNumber, String pin) {
+        this(cardNumber, pin, 5000.0, 5000.0, false);
+    }
+
+    // bulkLoaded: opening balances come from an import file and no creation note is written
+    ATMImplementation(String cardNumber, String pin, double savings, double current, boolean bulkLoaded) {
         this.cardNumber = cardNumber;
         this.pin = pin;
         // by default create two account types: Savings and Current
-        accounts.put("Savings", new AccountType("Savings", 5000.0, 0.0, 0.5)); // small monthly interest
-        accounts.put("Current", new AccountType("Current", 5000.0, 5000.0, 0.0)); // overdraft allowed
+        accounts.put("Savings", new AccountType("Savings", savings, 0.0, 0.5)); // small monthly interest
+        accounts.put("Current", new AccountType("Current", current, 5000.0, 0.0)); // overdraft allowed
         profile.add("Phone: -");
         profile.add("Email: -");
-        getAny().addHistory("Account created with Savings & Current");
+        for (AccountType acc : accounts.values()) acc.bindOwner(this);
+        emit(AccountOp.CREATED, pinVerifier() + "\nSavings=" + savings + "\nCurrent=" + current);
+        if (!bulkLoaded) getAny().addHistory("Account created with Savings & Current");
+    }
+
+    // restored from the cold tier: no creation event, accounts come from the record
+    private ATMImplementation(String cardNumber) {
+        this.cardNumber = cardNumber;
+    }
+
+    private void emit(AccountOp op, String detail) {
+        if (retired) TieredAccountStore.retiredWrite(this);
+        if (AccountEvents.active()) AccountEvents.publish(AccountEvent.forCard(cardNumber, op, detail));
+    }
+
+    synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(cardNumber);
+        out.writeUTF(pin);
+        out.writeBoolean(locked);
+        out.writeInt(failedAttempts);
+        out.writeInt(profile.size());
+        for (String p : profile) out.writeUTF(p);
+        out.writeInt(accounts.size());
+        for (AccountType acc : accounts.values()) acc.writeTo(out);
+    }
+
+    static ATMImplementation readFrom(DataInput in) throws IOException {
+        ATMImplementation impl = new ATMImplementation(in.readUTF());
+        impl.pin = in.readUTF();
+        impl.locked = in.readBoolean();
+        impl.failedAttempts = in.readInt();
+        for (int i = in.readInt(); i > 0; i--) impl.profile.add(in.readUTF());
+        for (int i = in.readInt(); i > 0; i--) {
+            AccountType acc = AccountType.readFrom(in, impl);
+            impl.accounts.put(acc.typeName, acc);
+        }
+        return impl;
+    }
+
+    void setRetired(boolean r) {
+        retired = r;
+        for (AccountType acc : accounts.values()) acc.retired = r;
+    }
+
+    boolean hasReservations() {
+        for (AccountType acc : accounts.values()) if (acc.hasReservations()) return true;
+        return false;
     }
 
     public String getCardNumber() { return cardNumber; }
 
-    public boolean checkPin(String attempt) {
+    public synchronized boolean checkPin(String attempt) {
         if (locked) return false;
-        if (pin.equals(attempt)) {
-            failedAttempts = 0;
+        if (pin.startsWith(PIN_HASH) ? attempt != null && pin.equals(pinHash(cardNumber, attempt)) : pin.equals(attempt)) {
+            if (failedAttempts != 0) {
+                failedAttempts = 0;
+                if (retired) TieredAccountStore.retiredWrite(this);
+            }
             return true;
         } else {
             failedAttempts++;
-            if (failedAttempts >= 3) locked = true;
+            if (retired) TieredAccountStore.retiredWrite(this);
+            if (failedAttempts >= 3) {
+                locked = true;
+                emit(AccountOp.LOCKED, null);
+                AuditLog.record(cardNumber, "LOCKOUT", failedAttempts + " failed PIN attempts");
+            }
             return false;
         }
     }
 
-    public void changePin(String newPin) { this.pin = newPin; }
+    public synchronized void changePin(String newPin) {
+        if (ReplicationNode.isReadOnly()) return;
+        this.pin = newPin;
+        emit(AccountOp.PIN_CHANGED, pinVerifier());
+        AuditLog.record(cardNumber, "PIN_CHANGE", null);
+    }
+
+    String pin() { return pin; }
+
+    /*
+     * What leaves this object instead of the PIN: account events and the replication stream carry
+     * pinHash(card, pin), and a follower stores and checks that. Salting with the card number keeps
+     * equal PINs apart; four digits are still guessable from the hash, so it is not for untrusted eyes.
+     */
+    synchronized String pinVerifier() { return pin.startsWith(PIN_HASH) ? pin : pinHash(cardNumber, pin); }
+
+    static String pinHash(String card, String pin) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            return PIN_HASH + AuditLog.hex(sha.digest((card + ":" + pin).getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
 
     public boolean isLocked() { return locked; }
-    public void unlock() { locked = false; failedAttempts = 0; getAny().addHistory("Account unlocked by admin"); }
+    public void unlock() {
+        if (ReplicationNode.isReadOnly()) return;
+        synchronized (this) {
+            locked = false;
+            failedAttempts = 0;
+            emit(AccountOp.UNLOCKED, null);
+        }
+        getAny().addHistory("Account unlocked by admin");
+    }
 
     public Collection<String> accountTypes() { return accounts.keySet(); }
 
@@ -300,15 +1046,48 @@ class ATMImplementation {
     }
 
     public List<String> getProfile() { return profile; }
+
+    // a profile field ("Phone", "Email") without its label, or null when not set
+    synchronized String contact(String field) {
+        for (String p : profile) {
+            if (!p.startsWith(field + ": ")) continue;
+            String v = p.substring(field.length() + 2).trim();
+            return v.isEmpty() || v.equals("-") ? null : v;
+        }
+        return null;
+    }
     public void setProfile(String phone, String email) {
-        profile.clear();
-        profile.add("Phone: " + phone);
-        profile.add("Email: " + email);
+        if (ReplicationNode.isReadOnly()) return;
+        synchronized (this) {
+            profile.clear();
+            profile.add("Phone: " + phone);
+            profile.add("Email: " + email);
+            emit(AccountOp.PROFILE, phone + "\n" + email);
+        }
+        AuditLog.record(cardNumber, "PROFILE_UPDATE", "phone/email");
         getAny().addHistory("Profile updated");
     }
 
+    // follower side: card-level state from a primary's event or snapshot (never re-published upstream)
+    synchronized void applyReplicated(AccountEvent e) {
+        switch (e.op) {
+            case PIN_CHANGED: pin = e.detail; break;
+            case LOCKED: locked = true; break;
+            case UNLOCKED: locked = false; failedAttempts = 0; break;
+            case PROFILE:
+                String[] pe = e.detail.split("\n", 2);
+                profile.clear();
+                profile.add("Phone: " + pe[0]);
+                profile.add("Email: " + (pe.length > 1 ? pe[1] : "-"));
+                break;
+            default: return;
+        }
+        if (AccountEvents.active()) AccountEvents.publish(e);
+    }
+
     public boolean applyLoan(double amount, double maxLoanLimit) {
         // simple simulated loan: if requested <= maxLoanLimit, approve and deposit into Current
+        if (ReplicationNode.isReadOnly()) return false;
         if (amount <= maxLoanLimit) {
             AccountType cur = accounts.get("Current");
             if (cur != null) {
@@ -321,10 +1100,118 @@ class ATMImplementation {
     }
 }
 
+/* ---------- Transfer journal ---------- */
+/*
+ * Transfer legs committed on this node, per account day (the current and the previous one), for
+ * settlement. Legs of transfers with both halves here net to zero once both are applied, so only
+ * the running net is kept for them; legs whose other half is on another shard are kept whole, with
+ * the coordinator that decided them, so settlement can confirm each one by txId.
+ * A leg is recorded under its account's monitor, right after it is applied, with the version it
+ * produced. A settlement scan opens a Watch first: the net recorded until then is in every account
+ * copy the scan takes, and each leg recorded during the scan is in its account's copy exactly when
+ * that copy's version is at least the leg's.
+ */
+class TransferJournal {
+    static final class Leg {
+        final String txId, card, type, counterparty, coordinator;
+        final boolean debit, crossShard;
+        final double amount;
+        final long version; // account version after this leg
+
+        Leg(String txId, boolean debit, String card, String type, double amount, String counterparty,
+            String coordinator, boolean crossShard, long version) {
+            this.txId = txId;
+            this.debit = debit;
+            this.card = card;
+            this.type = type;
+            this.amount = amount;
+            this.counterparty = counterparty;
+            this.coordinator = coordinator;
+            this.crossShard = crossShard;
+            this.version = version;
+        }
+
+        double signed() { return debit ? amount : -amount; }
+
+        @Override
+        public String toString() {
+            return txId + " " + card + "/" + type + (debit ? " -> " : " <- ") + counterparty + " ₹" + amount
+                    + (crossShard ? " via " + coordinator : "");
+        }
+    }
+
+    private static final class Day {
+        final DoubleAdder net = new DoubleAdder(); // debits minus credits
+        final Queue<Leg> crossShard = new ConcurrentLinkedQueue<>();
+    }
+
+    /* The net recorded for a day before a scan began, and the legs recorded for it while the scan ran. */
+    static final class Watch implements AutoCloseable {
+        final LocalDate day;
+        final double netBefore;
+        private final Queue<Leg> during = new ConcurrentLinkedQueue<>();
+
+        private Watch(LocalDate day, double netBefore) {
+            this.day = day;
+            this.netBefore = netBefore;
+        }
+
+        List<Leg> during() { return new ArrayList<>(during); }
+
+        @Override
+        public void close() { WATCHES.remove(this); }
+    }
+
+    private static final Map<LocalDate, Day> DAYS = new ConcurrentHashMap<>();
+    private static final List<Watch> WATCHES = new CopyOnWriteArrayList<>();
+    private static final ReadWriteLock WATCH_LOCK = new ReentrantReadWriteLock(); // write: opening a Watch
+    private static final AtomicLong COMMITTED = new AtomicLong();
+
+    // called holding the leg's account monitor, so no copy of that account can fall between apply and record
+    static void record(LocalDate day, Leg leg) {
+        WATCH_LOCK.readLock().lock();
+        try {
+            Day d = DAYS.computeIfAbsent(day, k -> new Day());
+            d.net.add(leg.signed());
+            if (leg.crossShard) d.crossShard.add(leg);
+            for (Watch w : WATCHES) if (w.day.equals(day)) w.during.add(leg);
+        } finally {
+            WATCH_LOCK.readLock().unlock();
+        }
+        COMMITTED.incrementAndGet();
+        if (DAYS.size() > 2) DAYS.keySet().removeIf(k -> k.isBefore(day.minusDays(1)));
+    }
+
+    // every leg lands in exactly one of netBefore and during
+    static Watch watch(LocalDate day) {
+        WATCH_LOCK.writeLock().lock();
+        try {
+            Watch w = new Watch(day, net(day));
+            WATCHES.add(w);
+            return w;
+        } finally {
+            WATCH_LOCK.writeLock().unlock();
+        }
+    }
+
+    static double net(LocalDate day) {
+        Day d = DAYS.get(day);
+        return d == null ? 0 : d.net.sum();
+    }
+
+    static List<Leg> crossShard(LocalDate day) {
+        Day d = DAYS.get(day);
+        return d == null ? Collections.emptyList() : new ArrayList<>(d.crossShard);
+    }
+
+    public static long committedLegs() { return COMMITTED.get(); }
+}
+
 /* ---------- Login screen ---------- */
 class LoginScreen extends JFrame {
-    static final Map<String, String> ACCOUNTS = new HashMap<>(); // card -> pin (initial)
-    static final Map<String, ATMImplementation> ACCOUNT_MODELS = new HashMap<>();
+    // concurrent: replication and control-port threads read and register cards alongside the EDT
+    static final Map<String, String> ACCOUNTS = new ConcurrentHashMap<>(); // card -> pin (initial, sample cards)
+    static final TieredAccountStore ACCOUNT_MODELS = new TieredAccountStore();
     static final Set<String> ADMIN_CARDS = new HashSet<>();
 
     // track blocked accounts persistently (for this session)
@@ -351,6 +1238,15 @@ class LoginScreen extends JFrame {
         ADMIN_CARDS.add("00000000");
     }
 
+    // the PIN lives in the model only, so a cold card costs no heap here
+    static void register(ATMImplementation impl) {
+        ACCOUNT_MODELS.put(impl.getCardNumber(), impl);
+    }
+
+    static boolean registerIfAbsent(ATMImplementation impl) {
+        return ACCOUNT_MODELS.putIfAbsent(impl.getCardNumber(), impl) == null;
+    }
+
     public LoginScreen() {
         super(Texts.t("welcome"));
         setExtendedState(JFrame.MAXIMIZED_BOTH);
@@ -430,16 +1326,30 @@ class LoginScreen extends JFrame {
         loginBtn.addActionListener(e -> {
             String card = cardField.getText().trim();
             String pin = new String(pinField.getPassword()).trim();
-            if (!ACCOUNTS.containsKey(card)) {
+            // every attempt is charged to the AUTH buckets before the card is even looked up, so
+            // guessing unknown cards is throttled and a cold-card fault never bypasses load shedding
+            ATMImplementation impl;
+            boolean wasLocked = false, pinOk = false;
+            try (AdmissionControl.Permit p = AdmissionControl.GLOBAL.admitNow(AdmissionControl.LOCAL_TERMINAL, card, RequestClass.AUTH)) {
+                if (!p.granted()) {
+                    JOptionPane.showMessageDialog(this, Texts.t(p.reason()));
+                    return;
+                }
+                impl = ACCOUNT_MODELS.get(card); // faults a cold card in
+                if (impl != null) {
+                    wasLocked = impl.isLocked();
+                    if (!wasLocked) pinOk = impl.checkPin(pin);
+                }
+            }
+            if (impl == null) {
                 JOptionPane.showMessageDialog(this, Texts.t("invalid_login"));
                 return;
             }
-            ATMImplementation impl = ACCOUNT_MODELS.get(card);
-            if (impl.isLocked()) {
+            if (wasLocked) {
                 JOptionPane.showMessageDialog(this, Texts.t("card_blocked"));
                 return;
             }
-            if (impl.checkPin(pin) || (ADMIN_CARDS.contains(card) && ACCOUNTS.get(card).equals(pin))) {
+            if (pinOk || (ADMIN_CARDS.contains(card) && pin.equals(ACCOUNTS.get(card)))) {
                 // login success
                 dispose();
                 if (ADMIN_CARDS.contains(card)) {
@@ -579,10 +1489,11 @@ class ATMGUI extends JFrame {
         for (Component c : keys.getComponents()) if (c instanceof JButton) ((JButton)c).addActionListener(resetTimer);
 
         // Button actions
-        balanceBtn.addActionListener(e -> showBalance());
-        depositBtn.addActionListener(e -> processInput("Deposit"));
-        withdrawBtn.addActionListener(e -> processInput("Withdraw"));
-        miniStmtBtn.addActionListener(e -> showMiniStatement());
+        balanceBtn.addActionListener(e -> admitted(RequestClass.INQUIRY, this::showBalance));
+        depositBtn.addActionListener(e -> admitted(RequestClass.TRANSACTION, () -> processInput("Deposit")));
+        withdrawBtn.addActionListener(e -> admitted(RequestClass.TRANSACTION, () -> processInput("Withdraw")));
+        miniStmtBtn.addActionListener(e -> admitted(RequestClass.INQUIRY, this::showMiniStatement));
+        // these ask for more input first and take their permit once the dialogs are answered
         transferBtn.addActionListener(e -> processInput("Transfer"));
         changePinBtn.addActionListener(e -> processInput("PIN"));
         fastCashBtn.addActionListener(e -> showFastCashOptions());
@@ -596,6 +1507,18 @@ class ATMGUI extends JFrame {
         refreshHistory("Login successful.");
     }
 
+    // run the action only if admission control lets it through, otherwise say why on screen;
+    // never waits, since this runs on the event thread
+    private void admitted(RequestClass cls, Runnable action) {
+        try (AdmissionControl.Permit p = AdmissionControl.GLOBAL.admitNow(AdmissionControl.LOCAL_TERMINAL, currentCard, cls)) {
+            if (!p.granted()) {
+                screenLabel.setText(Texts.t(p.reason()));
+                return;
+            }
+            action.run();
+        }
+    }
+
     private void refreshHistory(String head) {
         historyArea.setText(head + "\n\n");
         for (String t : atmModel.getAny().getHistory()) {
@@ -604,11 +1527,26 @@ class ATMGUI extends JFrame {
     }
 
     private void showBalance() {
-        AccountType acc = atmModel.getAccount((String) accountSelector.getSelectedItem());
+        String type = (String) accountSelector.getSelectedItem();
+        ReadModels rm = ReadModels.get();
+        ReadModels.AccountView v = rm == null ? null : rm.account(currentCard, type);
+        if (v != null) {
+            // served from the projection: does not contend with withdrawals on this account, and
+            // never waits for the projector on the EDT; a lagging view says how old it is
+            long stale = rm.staleness();
+            screenLabel.setText(Texts.t("balance") + ": ₹" + String.format("%.2f", v.balance)
+                    + (stale > ReadModels.DEFAULT_STALENESS_MS ? " (~" + stale / 1000 + "s old)" : ""));
+            return;
+        }
+        AccountType acc = atmModel.getAccount(type);
         screenLabel.setText(Texts.t("balance") + ": ₹" + String.format("%.2f", acc.getBalance()));
     }
 
     private void processInput(String type) {
+        if (ReplicationNode.isReadOnly()) {
+            screenLabel.setText(Texts.t("read_only"));
+            return;
+        }
         String txt = inputField.getText().trim();
         if (txt.isEmpty()) {
             screenLabel.setText(Texts.t("enter_amount_keypad"));
@@ -636,37 +1574,44 @@ class ATMGUI extends JFrame {
                     break;
                 case "Transfer":
                     String target = JOptionPane.showInputDialog(this, Texts.t("enter_card"));
-                    if (target == null || !LoginScreen.ACCOUNT_MODELS.containsKey(target) || target.equals(currentCard)) {
+                    if (target == null || target.equals(currentCard) || TransferCoordinator.participantFor(target) == null) {
                         screenLabel.setText(Texts.t("invalid_login"));
                         break;
                     }
-                    AccountType targetAcc = LoginScreen.ACCOUNT_MODELS.get(target).getAccount("Current"); // deposit to recipient current
+                    // recipient may live on another shard; default to their current account
+                    String[] targetTypes = {"Current", "Savings"};
+                    String targetType = (String) JOptionPane.showInputDialog(this, Texts.t("select_acc"), Texts.t("transfer"),
+                            JOptionPane.PLAIN_MESSAGE, null, targetTypes, targetTypes[0]);
+                    if (targetType == null) break;
                     if (!acc.canTransferDaily(amt)) {
                         screenLabel.setText(Texts.t("daily_transfer_limit"));
                         break;
                     }
-                    if (acc.transferOut(amt)) {
-                        targetAcc.receiveTransfer(amt, currentCard);
-                        acc.addHistory("Transferred ₹" + amt + " to " + target);
-                        targetAcc.addHistory("Received ₹" + amt + " from " + currentCard);
-                        screenLabel.setText(Texts.t("transfer_success") + " ₹" + amt + " to " + target);
-                    } else {
-                        screenLabel.setText(Texts.t("insufficient"));
+                    AdmissionControl.Permit permit = AdmissionControl.GLOBAL.admitNow(AdmissionControl.LOCAL_TERMINAL,
+                            currentCard, RequestClass.TRANSACTION);
+                    if (!permit.granted()) {
+                        screenLabel.setText(Texts.t(permit.reason()));
+                        permit.close();
+                        break;
                     }
+                    transfer(permit, acc, target, targetType, amt);
                     break;
                 case "PIN":
                     String oldPin = JOptionPane.showInputDialog(this, "Enter current PIN:");
-                    if (oldPin != null && atmModel.checkPin(oldPin)) {
-                        String newPin = txt;
-                        if (newPin.matches("\\d{4}")) {
-                            atmModel.changePin(newPin);
-                            screenLabel.setText(Texts.t("pin_changed"));
+                    if (oldPin == null) break;
+                    admitted(RequestClass.AUTH, () -> {
+                        if (atmModel.checkPin(oldPin)) {
+                            String newPin = txt;
+                            if (newPin.matches("\\d{4}")) {
+                                atmModel.changePin(newPin);
+                                screenLabel.setText(Texts.t("pin_changed"));
+                            } else {
+                                screenLabel.setText(Texts.t("invalid_pin_format"));
+                            }
                         } else {
-                            screenLabel.setText(Texts.t("invalid_pin_format"));
+                            screenLabel.setText(Texts.t("incorrect_old_pin"));
                         }
-                    } else {
-                        screenLabel.setText(Texts.t("incorrect_old_pin"));
-                    }
+                    });
                     break;
             }
             inputField.setText("");
@@ -677,12 +1622,44 @@ class ATMGUI extends JFrame {
         }
     }
 
+    // a remote shard can take seconds to vote, so the transfer runs off the EDT and holds the permit until done
+    private void transfer(AdmissionControl.Permit permit, AccountType acc, String target, String targetType, double amt) {
+        String card = currentCard;
+        screenLabel.setText(Texts.t("transfer") + " ₹" + amt + " to " + target + "...");
+        new SwingWorker<TransferCoordinator.Outcome, Void>() {
+            @Override
+            protected TransferCoordinator.Outcome doInBackground() throws IOException {
+                try {
+                    return TransferCoordinator.get().transfer(card, acc.typeName, target, targetType, amt);
+                } finally {
+                    permit.close();
+                }
+            }
+
+            @Override
+            protected void done() {
+                TransferCoordinator.Outcome outcome;
+                try {
+                    outcome = get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    screenLabel.setText("Transfer unavailable: " + ex.getCause());
+                    return;
+                }
+                if (outcome == TransferCoordinator.Outcome.ABORTED) {
+                    screenLabel.setText(Texts.t("insufficient"));
+                } else {
+                    screenLabel.setText(Texts.t("transfer_success") + " ₹" + amt + " to " + target
+                            + (outcome == TransferCoordinator.Outcome.COMMIT_PENDING ? " (pending)" : ""));
+                }
+                refreshHistory("Updated:");
+            }
+        }.execute();
+    }
+
     private void showMiniStatement() {
         AccountType acc = atmModel.getAccount((String) accountSelector.getSelectedItem());
-        List<String> h = acc.getHistory();
         StringBuilder sb = new StringBuilder(Texts.t("mini_stmt") + ":\n");
-        int start = Math.max(0, h.size() - 5);
-        for (int i = start; i < h.size(); i++) sb.append(h.get(i)).append("\n");
+        for (String line : acc.getHistory(5)) sb.append(line).append("\n");
         historyArea.setText(sb.toString());
     }
 
@@ -691,14 +1668,20 @@ class ATMGUI extends JFrame {
         String choice = (String) JOptionPane.showInputDialog(this, "Select Fast Cash:", Texts.t("fast_cash"),
                 JOptionPane.PLAIN_MESSAGE, null, opts, opts[0]);
         if (choice != null) {
+            if (ReplicationNode.isReadOnly()) {
+                screenLabel.setText(Texts.t("read_only"));
+                return;
+            }
             double amt = Double.parseDouble(choice);
             AccountType acc = atmModel.getAccount((String) accountSelector.getSelectedItem());
-            if (acc.withdraw(amt)) {
-                screenLabel.setText("Fast Cash: ₹" + amt + " | Balance: ₹" + acc.getBalance());
-                refreshHistory("Fast cash used");
-            } else {
-                screenLabel.setText(Texts.t("insufficient"));
-            }
+            admitted(RequestClass.TRANSACTION, () -> {
+                if (acc.withdraw(amt)) {
+                    screenLabel.setText("Fast Cash: ₹" + amt + " | Balance: ₹" + acc.getBalance());
+                    refreshHistory("Fast cash used");
+                } else {
+                    screenLabel.setText(Texts.t("insufficient"));
+                }
+            });
         }
     }
 
@@ -716,15 +1699,15 @@ class ATMGUI extends JFrame {
         }
     }
 
+    private static final DateTimeFormatter RECEIPT_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
     private void saveReceiptDialog() {
         AccountType acc = atmModel.getAccount((String) accountSelector.getSelectedItem());
         String txn = "Receipt for " + currentCard + " (" + acc.typeName + ")\n";
-        txn += "Time: " + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) + "\n";
+        txn += "Time: " + LocalDateTime.now().format(RECEIPT_TIME) + "\n";
         txn += "Balance: ₹" + String.format("%.2f", acc.getBalance()) + "\n";
         txn += "Recent txns:\n";
-        List<String> h = acc.getHistory();
-        int start = Math.max(0, h.size() - 5);
-        for (int i = start; i < h.size(); i++) txn += h.get(i) + "\n";
+        for (String line : acc.getHistory(5)) txn += line + "\n";
         // save file
         String filename = "receipt_" + currentCard + "_" + System.currentTimeMillis() + ".txt";
         Path out = RECEIPT_DIR.resolve(filename);
@@ -742,12 +1725,14 @@ class ATMGUI extends JFrame {
         try {
             double amt = Double.parseDouble(amtStr);
             double maxLoan = 20000; // simple rule
-            if (atmModel.applyLoan(amt, maxLoan)) {
-                screenLabel.setText(Texts.t("loan_approved") + amt);
-                refreshHistory("Loan credited");
-            } else {
-                screenLabel.setText(Texts.t("loan_denied"));
-            }
+            admitted(RequestClass.TRANSACTION, () -> {
+                if (atmModel.applyLoan(amt, maxLoan)) {
+                    screenLabel.setText(Texts.t("loan_approved") + amt);
+                    refreshHistory("Loan credited");
+                } else {
+                    screenLabel.setText(Texts.t("loan_denied"));
+                }
+            });
         } catch (NumberFormatException ex) {
             screenLabel.setText(Texts.t("invalid_amount"));
         }
@@ -800,16 +1785,17 @@ class ATMAdminGUI extends JFrame {
         setLayout(new BorderLayout(8,8));
         getContentPane().setBackground(Color.BLACK);
 
-        JPanel left = new JPanel(new GridLayout(5,1,12,12));
+        JPanel left = new JPanel(new GridLayout(7,1,12,12));
         left.setBackground(Color.BLACK);
         JButton viewAll = new JButton(Texts.t("view_accounts"));
         JButton unlock = new JButton(Texts.t("unlock_account"));
         JButton applyInterest = new JButton("Apply Monthly Interest");
+        JButton settle = new JButton("End-of-Day Settlement");
         JButton logout = new JButton(Texts.t("logout"));
         JButton exit = new JButton(Texts.t("exit"));
         JButton langToggle = new JButton(Texts.t("language_toggle"));
 
-        JButton[] bs = {viewAll, unlock, applyInterest, logout, exit};
+        JButton[] bs = {viewAll, unlock, applyInterest, settle, logout, exit};
         for (JButton b : bs) {
             b.setFont(new Font("Monospaced", Font.BOLD, 16));
             b.setBackground(Color.DARK_GRAY);
@@ -830,13 +1816,19 @@ class ATMAdminGUI extends JFrame {
         viewAll.addActionListener(e -> showAllAccounts());
         unlock.addActionListener(e -> unlockAccount());
         applyInterest.addActionListener(e -> {
+            if (ReplicationNode.isReadOnly()) {
+                display.append("\n" + Texts.t("read_only") + "\n");
+                return;
+            }
             for (ATMImplementation impl : LoginScreen.ACCOUNT_MODELS.values()) {
                 for (String accType : impl.accountTypes()) {
                     impl.getAccount(accType).applyMonthlyInterest();
                 }
             }
+            AuditLog.record(adminCard, "APPLY_INTEREST", "all eligible accounts");
             display.append("\nMonthly interest applied to eligible accounts.\n");
         });
+        settle.addActionListener(e -> runSettlement());
         logout.addActionListener(e -> { dispose(); new LoginScreen(); });
         exit.addActionListener(e -> System.exit(0));
         langToggle.addActionListener(e -> {
@@ -851,6 +1843,22 @@ class ATMAdminGUI extends JFrame {
     }
 
     private void showAllAccounts() {
+        ReadModels rm = ReadModels.get();
+        if (rm != null) {
+            // lock-free scan of the projections without waiting for them; the dashboard header shows the staleness
+            StringBuilder sb = new StringBuilder(rm.dashboard()).append("\n");
+            for (ReadModels.CardView c : rm.cards()) {
+                sb.append("Card: ").append(c.card).append(c.locked ? " [LOCKED]\n" : "\n");
+                for (Map.Entry<String, ReadModels.AccountView> a : c.accounts.entrySet()) {
+                    sb.append("  - ").append(a.getKey()).append(": ₹").append(String.format("%.2f", a.getValue().balance))
+                      .append(" (dailyW: ₹").append(String.format("%.2f", a.getValue().dailyWithdrawn)).append(")\n");
+                }
+                ATMImplementation impl = LoginScreen.ACCOUNT_MODELS.peek(c.card); // must not fault every card in
+                if (impl != null) sb.append("  Profile: ").append(impl.getProfile()).append("\n");
+            }
+            display.setText(sb.toString());
+            return;
+        }
         StringBuilder sb = new StringBuilder();
         for (Map.Entry<String, ATMImplementation> e : LoginScreen.ACCOUNT_MODELS.entrySet()) {
             String card = e.getKey();
@@ -866,6 +1874,21 @@ class ATMAdminGUI extends JFrame {
         display.setText(sb.toString());
     }
 
+    private void runSettlement() {
+        display.append("\nSettlement running...\n");
+        // off the EDT: the pass over all accounts can take a while on a large card base
+        new Thread(() -> {
+            String msg;
+            try {
+                msg = SettlementJob.run(LocalDate.now()).summary();
+            } catch (IOException ex) {
+                msg = "Settlement failed: " + ex.getMessage();
+            }
+            String out = msg;
+            SwingUtilities.invokeLater(() -> display.append(out + "\n"));
+        }, "settlement").start();
+    }
+
     private void unlockAccount() {
         String card = JOptionPane.showInputDialog(this, Texts.t("admin_prompt"));
         if (card == null) return;
@@ -874,7 +1897,4309 @@ class ATMAdminGUI extends JFrame {
             JOptionPane.showMessageDialog(this, "No such account.");
             return;
         }
+        if (ReplicationNode.isReadOnly()) {
+            display.append("\n" + Texts.t("read_only") + "\n");
+            return;
+        }
         impl.unlock();
+        AuditLog.record(adminCard, "UNLOCK", card);
         display.append("\n" + card + " unlocked.\n");
     }
 }
+
+/* ---------- Line codec ---------- */
+/* Escaping for tab-separated text records (replication stream, audit log). null is written as \0. */
+class LineCodec {
+    static String esc(String s) {
+        if (s == null) return "\\0";
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    static String unesc(String s) {
+        if (s.equals("\\0")) return null;
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
+
+/* ---------- Replication (primary-backup) ---------- */
+enum NodeRole { STANDALONE, PRIMARY, FOLLOWER }
+
+/**
+ * Primary-backup replication of account state over loopback sockets.
+ * - The primary streams every committed AccountEvent to its followers in commit order
+ * - A follower first receives a snapshot (cards, balances, daily counters, history) and then the stream;
+ *   per-account versions make events already covered by the snapshot a no-op
+ * - PINs are replicated as ATMImplementation.pinVerifier() hashes, never in plain text
+ * - Followers are read-only and answer BALANCE / MINI queries on their control port
+ * - Promotion: PROMOTE on the control port, or automatic with --auto-promote when the primary goes quiet.
+ *   There is no election, so enable auto-promote on a single follower only.
+ *
+ * Example (three shells on one box):
+ *   java ATMApp --headless --primary 7000 --control 7100
+ *   java ATMApp --headless --follow 127.0.0.1:7000 --repl-port 7001 --control 7101 --auto-promote
+ *   java ATMApp --headless --follow 127.0.0.1:7000 --control 7102
+ */
+class ReplicationNode {
+    static final long HEARTBEAT_MS = 500;
+    static final long FAILOVER_MS = 3000;
+
+    private static volatile NodeRole role = NodeRole.STANDALONE;
+    private static ReplicationPrimary primary;
+    private static ReplicationFollower follower;
+    private static int replPort = -1; // port to serve on once promoted
+
+    public static boolean isReadOnly() { return role == NodeRole.FOLLOWER; }
+    public static NodeRole role() { return role; }
+
+    public static synchronized void startPrimary(int port) throws IOException {
+        primary = new ReplicationPrimary(port);
+        replPort = port;
+        role = NodeRole.PRIMARY;
+    }
+
+    public static synchronized void startFollower(String host, int port, int promotedPort, boolean autoPromote) {
+        replPort = promotedPort;
+        role = NodeRole.FOLLOWER;
+        follower = new ReplicationFollower(host, port, autoPromote);
+        follower.start();
+    }
+
+    public static synchronized String promote() {
+        if (role != NodeRole.FOLLOWER) return "ERR not a follower";
+        follower.stop();
+        role = NodeRole.STANDALONE;
+        if (replPort > 0) {
+            try {
+                startPrimary(replPort);
+            } catch (IOException ex) {
+                return "OK promoted (standalone, replication port " + replPort + " failed: " + ex.getMessage() + ")";
+            }
+        }
+        return "OK promoted to " + role;
+    }
+
+    public static synchronized String status() {
+        StringBuilder sb = new StringBuilder("role=").append(role);
+        if (role == NodeRole.PRIMARY && primary != null) sb.append(' ').append(primary.status());
+        if (role == NodeRole.FOLLOWER && follower != null) sb.append(' ').append(follower.status());
+        return sb.toString();
+    }
+
+    /* ---- wire format: one tab-separated line per record, fields escaped with LineCodec ---- */
+
+    static String encodeEvent(long seq, AccountEvent e) {
+        return "E\t" + seq + "\t" + e.timeMillis + "\t" + LineCodec.esc(e.card) + "\t" + LineCodec.esc(e.accountType)
+                + "\t" + e.op + "\t" + e.amount + "\t" + e.balanceAfter + "\t" + e.version
+                + "\t" + LineCodec.esc(e.detail) + "\t" + LineCodec.esc(e.line());
+    }
+
+    static AccountEvent decodeEvent(String[] f) {
+        return new AccountEvent(LineCodec.unesc(f[3]), LineCodec.unesc(f[4]), AccountOp.valueOf(f[5]),
+                Double.parseDouble(f[6]), Double.parseDouble(f[7]), Long.parseLong(f[8]),
+                LineCodec.unesc(f[9]), LineCodec.unesc(f[10]), Long.parseLong(f[2]));
+    }
+}
+
+/* Primary side: accepts followers and fans committed events out to them. */
+class ReplicationPrimary implements AccountListener {
+    private static final int LINK_QUEUE_CAPACITY = 100_000;
+    private static final int DISPATCH_BATCH = 4096;
+
+    private final ServerSocket server;
+    private final List<FollowerLink> links = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "repl-heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+    // committed events not yet numbered; writers only append, the dispatcher numbers and fans out
+    private final Queue<AccountEvent> pending = new ConcurrentLinkedQueue<>();
+    private final Thread dispatcher;
+    private volatile boolean parked;
+    private long seq = 0; // guarded by this, advanced by the dispatcher only
+
+    ReplicationPrimary(int port) throws IOException {
+        server = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptLoop, "repl-accept");
+        acceptor.start();
+        dispatcher = new Thread(this::dispatchLoop, "repl-dispatch");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        AccountEvents.subscribe(this);
+        heartbeat.scheduleAtFixedRate(this::beat, ReplicationNode.HEARTBEAT_MS, ReplicationNode.HEARTBEAT_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    // runs under the account monitor, so per-account order is commit order; queue order gives the global order
+    @Override
+    public void onEvent(AccountEvent e) {
+        pending.offer(e);
+        if (parked) LockSupport.unpark(dispatcher);
+    }
+
+    // numbering is the only serialized step, and no writer waits for it
+    private void dispatchLoop() {
+        while (true) {
+            AccountEvent e = pending.poll();
+            if (e == null) {
+                parked = true;
+                if (pending.isEmpty()) LockSupport.parkNanos(ReplicationNode.HEARTBEAT_MS * 1_000_000L);
+                parked = false;
+                continue;
+            }
+            synchronized (this) { // bounded, so a new follower or the heartbeat gets a turn under load
+                int n = 0;
+                do {
+                    seq++;
+                    String line = ReplicationNode.encodeEvent(seq, e);
+                    for (FollowerLink l : links) l.offer(line);
+                } while (++n < DISPATCH_BATCH && (e = pending.poll()) != null);
+            }
+        }
+    }
+
+    private synchronized void beat() {
+        String line = "H\t" + seq + "\t" + System.currentTimeMillis();
+        for (FollowerLink l : links) l.offer(line);
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                Socket s = server.accept();
+                FollowerLink link;
+                synchronized (this) {
+                    // registered before the snapshot is read, so nothing committed from here on is missed
+                    link = new FollowerLink(s, seq);
+                    links.add(link);
+                }
+                link.start();
+            } catch (IOException ex) {
+                if (!server.isClosed()) System.err.println("Replication accept failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    synchronized String status() {
+        StringBuilder sb = new StringBuilder("seq=").append(seq).append(" followers=").append(links.size());
+        for (FollowerLink l : links) {
+            sb.append(" [").append(l.socket.getRemoteSocketAddress())
+              .append(" acked=").append(l.ackedSeq)
+              .append(" lag=").append(seq - l.ackedSeq)
+              .append(" queued=").append(l.queue.size()).append(']');
+        }
+        return sb.toString();
+    }
+
+    private class FollowerLink {
+        final Socket socket;
+        final long startSeq;
+        final BlockingQueue<String> queue = new ArrayBlockingQueue<>(LINK_QUEUE_CAPACITY);
+        volatile long ackedSeq;
+
+        FollowerLink(Socket socket, long startSeq) {
+            this.socket = socket;
+            this.startSeq = startSeq;
+            this.ackedSeq = startSeq;
+        }
+
+        void start() {
+            Thread w = new Thread(this::writeLoop, "repl-send-" + socket.getPort());
+            w.setDaemon(true);
+            w.start();
+            Thread r = new Thread(this::ackLoop, "repl-ack-" + socket.getPort());
+            r.setDaemon(true);
+            r.start();
+        }
+
+        void offer(String line) {
+            // a follower that cannot keep up is dropped and resyncs from a fresh snapshot on reconnect
+            if (!queue.offer(line)) close();
+        }
+
+        private void writeLoop() {
+            try {
+                BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                // keys first, then one card at a time: a slow follower must not hold off eviction as a scan would
+                for (String card : LoginScreen.ACCOUNT_MODELS.cardNumbers()) {
+                    ATMImplementation impl = LoginScreen.ACCOUNT_MODELS.peek(card);
+                    if (impl == null) continue;
+                    List<String> prof = impl.getProfile();
+                    out.write("C\t" + LineCodec.esc(impl.getCardNumber()) + "\t" + LineCodec.esc(impl.pinVerifier())
+                            + "\t" + impl.isLocked() + "\t" + LineCodec.esc(prof.get(0).replace("Phone: ", ""))
+                            + "\t" + LineCodec.esc(prof.get(1).replace("Email: ", "")) + "\n");
+                    for (String t : impl.accountTypes()) {
+                        AccountType.State st = impl.getAccount(t).exportState();
+                        out.write("S\t" + LineCodec.esc(impl.getCardNumber()) + "\t" + LineCodec.esc(t)
+                                + "\t" + st.version + "\t" + st.balance + "\t" + st.dailyWithdrawn
+                                + "\t" + st.dailyTransferred + "\t" + st.history.size() + "\n");
+                        for (String h : st.history) out.write("L\t" + LineCodec.esc(h) + "\n");
+                    }
+                }
+                out.write("R\t" + startSeq + "\n");
+                out.flush();
+                while (!socket.isClosed()) {
+                    String line = queue.poll(ReplicationNode.HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+                    if (line == null) continue;
+                    out.write(line);
+                    out.write('\n');
+                    // batch whatever is already queued into the same flush
+                    while ((line = queue.poll()) != null) {
+                        out.write(line);
+                        out.write('\n');
+                    }
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException ex) {
+                // follower went away
+            } finally {
+                close();
+            }
+        }
+
+        private void ackLoop() {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("A\t")) ackedSeq = Long.parseLong(line.substring(2));
+                }
+            } catch (IOException | NumberFormatException ex) {
+                // follower went away
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            links.remove(this);
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+}
+
+/* Follower side: loads the snapshot, applies the stream and watches the primary's heartbeat. */
+class ReplicationFollower {
+    private final String host;
+    private final int port;
+    private final boolean autoPromote;
+    private volatile boolean running = true;
+    private volatile Socket socket;
+    private Thread thread;
+
+    // metrics
+    private volatile boolean synced = false;
+    private volatile boolean everSynced = false;
+    private volatile long appliedSeq = 0;
+    private volatile long primarySeq = 0;
+    private volatile long lastHeardMillis = System.currentTimeMillis();
+    private volatile long lastApplyLagMs = 0;
+    private volatile long maxApplyLagMs = 0;
+    private volatile long appliedEvents = 0;
+
+    ReplicationFollower(String host, int port, boolean autoPromote) {
+        this.host = host;
+        this.port = port;
+        this.autoPromote = autoPromote;
+    }
+
+    void start() {
+        thread = new Thread(this::run, "repl-follow");
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        Socket s = socket;
+        if (s != null) try { s.close(); } catch (IOException ignored) {}
+    }
+
+    String status() {
+        return "primary=" + host + ":" + port + " synced=" + synced + " applied=" + appliedSeq
+                + " primarySeq=" + primarySeq + " lagRecords=" + Math.max(0, primarySeq - appliedSeq)
+                + " lastApplyLagMs=" + lastApplyLagMs + " maxApplyLagMs=" + maxApplyLagMs
+                + " events=" + appliedEvents + " silentMs=" + (System.currentTimeMillis() - lastHeardMillis);
+    }
+
+    private void run() {
+        while (running) {
+            try (Socket s = new Socket(host, port)) {
+                socket = s;
+                s.setSoTimeout((int) ReplicationNode.HEARTBEAT_MS);
+                lastHeardMillis = System.currentTimeMillis();
+                follow(s);
+            } catch (IOException ex) {
+                // primary unreachable or connection lost
+            }
+            synced = false;
+            if (!running) return;
+            if (autoPromote && everSynced && System.currentTimeMillis() - lastHeardMillis > ReplicationNode.FAILOVER_MS) {
+                System.err.println("Primary silent for " + ReplicationNode.FAILOVER_MS + " ms, promoting: "
+                        + ReplicationNode.promote());
+                return;
+            }
+            try { Thread.sleep(ReplicationNode.HEARTBEAT_MS); } catch (InterruptedException ex) { return; }
+        }
+    }
+
+    private void follow(Socket s) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+        Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+        while (running) {
+            String line;
+            try {
+                line = in.readLine();
+            } catch (SocketTimeoutException ex) {
+                if (System.currentTimeMillis() - lastHeardMillis > ReplicationNode.FAILOVER_MS) return;
+                continue;
+            }
+            if (line == null) return;
+            lastHeardMillis = System.currentTimeMillis();
+            String[] f = line.split("\t", -1);
+            switch (f[0]) {
+                case "C": loadCard(f); break;
+                case "S": loadAccount(f, in); break;
+                case "R": {
+                    appliedSeq = primarySeq = Long.parseLong(f[1]);
+                    synced = everSynced = true;
+                    ReadModels rm = ReadModels.get();
+                    if (rm != null) rm.reseed(); // importState publishes nothing
+                    break;
+                }
+                case "E": apply(Long.parseLong(f[1]), ReplicationNode.decodeEvent(f)); break;
+                case "H":
+                    primarySeq = Math.max(primarySeq, Long.parseLong(f[1]));
+                    out.write("A\t" + appliedSeq + "\n");
+                    out.flush();
+                    break;
+                default: break;
+            }
+        }
+    }
+
+    private ATMImplementation cardFor(String card, String pin) {
+        ATMImplementation impl = LoginScreen.ACCOUNT_MODELS.get(card);
+        if (impl == null) {
+            impl = new ATMImplementation(card, pin);
+            LoginScreen.register(impl);
+        }
+        return impl;
+    }
+
+    private void loadCard(String[] f) {
+        String card = LineCodec.unesc(f[1]);
+        ATMImplementation impl = cardFor(card, LineCodec.unesc(f[2]));
+        impl.applyReplicated(AccountEvent.forCard(card, AccountOp.PIN_CHANGED, LineCodec.unesc(f[2])));
+        impl.applyReplicated(AccountEvent.forCard(card, Boolean.parseBoolean(f[3]) ? AccountOp.LOCKED : AccountOp.UNLOCKED, null));
+        impl.applyReplicated(AccountEvent.forCard(card, AccountOp.PROFILE,
+                LineCodec.unesc(f[4]) + "\n" + LineCodec.unesc(f[5])));
+    }
+
+    private void loadAccount(String[] f, BufferedReader in) throws IOException {
+        AccountType.State st = new AccountType.State();
+        st.version = Long.parseLong(f[3]);
+        st.balance = Double.parseDouble(f[4]);
+        st.dailyWithdrawn = Double.parseDouble(f[5]);
+        st.dailyTransferred = Double.parseDouble(f[6]);
+        int n = Integer.parseInt(f[7]);
+        st.history = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            String l = in.readLine();
+            if (l == null) throw new EOFException("snapshot truncated");
+            st.history.add(LineCodec.unesc(l.substring(2)));
+        }
+        AccountType acc = LoginScreen.ACCOUNT_MODELS.get(LineCodec.unesc(f[1])).getAccount(LineCodec.unesc(f[2]));
+        if (acc != null) acc.importState(st);
+    }
+
+    private void apply(long seq, AccountEvent e) {
+        if (e.op == AccountOp.CREATED) {
+            cardFor(e.card, e.createdPin());
+        } else {
+            ATMImplementation impl = LoginScreen.ACCOUNT_MODELS.get(e.card);
+            if (impl != null) {
+                if (e.accountType == null) {
+                    impl.applyReplicated(e);
+                } else {
+                    AccountType acc = impl.getAccount(e.accountType);
+                    if (acc != null) acc.applyReplicated(e);
+                }
+            }
+        }
+        appliedSeq = seq;
+        primarySeq = Math.max(primarySeq, seq);
+        appliedEvents++;
+        lastApplyLagMs = System.currentTimeMillis() - e.timeMillis;
+        if (lastApplyLagMs > maxApplyLagMs) maxApplyLagMs = lastApplyLagMs;
+    }
+}
+
+/*
+ * Line-oriented control port bound to loopback, one command per line:
+ *   BALANCE <card> <type> | MINI <card> <type> | STATUS | PROMOTE | SETTLE [yyyy-mm-dd] | DASHBOARD
+ *   DEPOSIT <card> <pin> <type> <amt> | WITHDRAW <card> <pin> <type> <amt>
+ *                   PIN-checked like a GUI login (locked cards refused); rejected on a follower
+ *   STORE           hot/cold account tier: sizes, hit ratio, fault latency
+ *   NOTIFY          alert pipeline: events, coalescing, per-sink deliveries and retries
+ *   TRANSFER <fromCard> <pin> <fromType> <toCard> <toType> <amt> | TXSTATUS   (this node coordinates)
+ *   TXBENCH <n> <fromCard> <pin> <fromType> <toCard> <toType> <amt>   n pipelined transfers, reports the rate
+ *   PREPARE <txId> DEBIT|CREDIT <card> <type> <amt> <counterparty> | COMMIT <txId> | ABORT <txId>
+ *                   two-phase participant calls, signed by a --tx-peer coordinator (see TxAuth)
+ *   TXDECISION <txId> | TXVERIFY <txId>[,<txId>...]
+ *                   signed queries from participants: a decision, or which txIds have no commit
+ * Account commands and TXBENCH go through AdmissionControl.GLOBAL with the peer address as terminal;
+ * those carrying a PIN are PIN attempts too and draw on the AUTH buckets, which a right PIN refunds.
+ * Participant calls are not throttled, since refusing a COMMIT would only leave a reservation held longer.
+ */
+class ControlServer {
+    private final ServerSocket server;
+    private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "control-conn");
+        t.setDaemon(true);
+        return t;
+    });
+
+    ControlServer(int port) throws IOException {
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket s = server.accept();
+                    workers.execute(() -> serve(s));
+                } catch (IOException ex) {
+                    if (!server.isClosed()) System.err.println("Control accept failed: " + ex.getMessage());
+                }
+            }
+        }, "control-accept");
+        acceptor.start();
+    }
+
+    private void serve(Socket s) {
+        try (Socket sock = s;
+             BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(sock.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            // the peer address, not the port: reconnecting must not buy a fresh bucket
+            String terminal = "ctl-" + sock.getInetAddress().getHostAddress();
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                out.println(handle(terminal, line.split("\\s+")));
+            }
+        } catch (IOException ignored) {
+            // client went away
+        }
+    }
+
+    String handle(String terminal, String[] cmd) {
+        String verb = cmd[0].toUpperCase();
+        RequestClass cls = classify(verb);
+        if (cls == null) return handle(cmd);
+        boolean pin = cls == RequestClass.TRANSACTION;
+        int cardAt = verb.equals("TXBENCH") ? 2 : 1;
+        String card = cmd.length > cardAt ? cmd[cardAt] : null;
+        AdmissionControl ac = AdmissionControl.GLOBAL;
+        try (AdmissionControl.Permit p = pin ? ac.admitWithPin(terminal, card, cls) : ac.admit(terminal, card, cls)) {
+            if (!p.granted()) return "ERR " + p.reason();
+            String resp = handle(cmd);
+            // past the PIN check: an aborted transfer still had the right PIN
+            if (pin && (resp.startsWith("OK") || resp.equals("ERR rejected"))) ac.refundPin(terminal, card);
+            return resp;
+        }
+    }
+
+    // every TRANSACTION command carries the card's PIN
+    private static RequestClass classify(String verb) {
+        switch (verb) {
+            case "BALANCE":
+            case "MINI": return RequestClass.INQUIRY;
+            case "DEPOSIT":
+            case "WITHDRAW":
+            case "TRANSFER":
+            case "TXBENCH": return RequestClass.TRANSACTION;
+            default: return null;
+        }
+    }
+
+    String handle(String[] cmd) {
+        switch (cmd[0].toUpperCase()) {
+            case "STATUS": return "OK " + ReplicationNode.status() + " | admission " + AdmissionControl.GLOBAL.status()
+                    + " | audit " + AuditLog.status();
+            case "PROMOTE": return ReplicationNode.promote();
+            case "STORE": return "OK " + LoginScreen.ACCOUNT_MODELS.status();
+            case "NOTIFY": {
+                Notifier n = Notifier.get();
+                return n == null ? "ERR notifications disabled" : "OK " + n.status();
+            }
+            case "SETTLE":
+                try {
+                    return "OK " + SettlementJob.run(cmd.length > 1 ? LocalDate.parse(cmd[1]) : LocalDate.now()).summary();
+                } catch (IOException | DateTimeException ex) {
+                    return "ERR " + ex.getMessage();
+                }
+            case "BALANCE": {
+                ReadModels rm = ReadModels.get();
+                ReadModels.AccountView v = rm == null || cmd.length < 3 ? null : rm.account(cmd[1], cmd[2]);
+                if (v != null) {
+                    long stale = rm.awaitFresh(ReadModels.DEFAULT_STALENESS_MS);
+                    return "OK " + String.format("%.2f", v.balance) + " staleMs=" + stale;
+                }
+                AccountType acc = lookup(cmd);
+                return acc == null ? "ERR no such account" : "OK " + String.format("%.2f", acc.getBalance());
+            }
+            case "DASHBOARD": {
+                ReadModels rm = ReadModels.get();
+                return rm == null ? "ERR read models disabled" : "OK\n" + rm.dashboard().trim();
+            }
+            case "MINI": {
+                AccountType acc = lookup(cmd);
+                if (acc == null) return "ERR no such account";
+                StringBuilder sb = new StringBuilder("OK");
+                for (String line : acc.getHistory(5)) sb.append("\n  ").append(line);
+                return sb.toString();
+            }
+            case "DEPOSIT":
+            case "WITHDRAW": {
+                if (cmd.length < 5) return "ERR usage: " + cmd[0].toUpperCase() + " <card> <pin> <type> <amt>";
+                HotPath.Command c = HotPath.command().set(cmd[0].equalsIgnoreCase("DEPOSIT") ? AccountOp.DEPOSIT : AccountOp.WITHDRAW,
+                        cmd[1], cmd[2], cmd[3], HotPath.parseAmount(cmd[4], 0, cmd[4].length()));
+                return HotPath.execute(c).appendTo(new StringBuilder(32)).toString();
+            }
+            case "TRANSFER": {
+                if (cmd.length < 7) return "ERR usage: TRANSFER <fromCard> <pin> <fromType> <toCard> <toType> <amt>";
+                double amt;
+                try { amt = Double.parseDouble(cmd[6]); } catch (NumberFormatException ex) { return "ERR invalid amount"; }
+                String denied = checkCard(cmd[1], cmd[2]);
+                if (denied != null) return denied;
+                try {
+                    TransferCoordinator.Outcome o = TransferCoordinator.get().transfer(cmd[1], cmd[3], cmd[4], cmd[5], amt);
+                    return o == TransferCoordinator.Outcome.ABORTED ? "ERR rejected" : "OK " + o;
+                } catch (IOException ex) {
+                    return "ERR " + ex.getMessage();
+                }
+            }
+            case "TXBENCH": {
+                if (cmd.length < 8) return "ERR usage: TXBENCH <n> <fromCard> <pin> <fromType> <toCard> <toType> <amt>";
+                String denied = checkCard(cmd[2], cmd[3]);
+                if (denied != null) return denied;
+                try {
+                    return "OK " + TransferCoordinator.get().bench(Integer.parseInt(cmd[1]), cmd[2], cmd[4], cmd[5], cmd[6],
+                            Double.parseDouble(cmd[7]));
+                } catch (NumberFormatException ex) {
+                    return "ERR invalid number";
+                } catch (IOException ex) {
+                    return "ERR " + ex.getMessage();
+                }
+            }
+            case "TXSTATUS":
+                try {
+                    return "OK " + TransferCoordinator.get().status();
+                } catch (IOException ex) {
+                    return "ERR " + ex.getMessage();
+                }
+            case "PREPARE": {
+                if (cmd.length != 10) return "ERR usage: PREPARE <txId> DEBIT|CREDIT <card> <type> <amt> <counterparty> <node> <millis> <mac>";
+                String node = TxAuth.verify(cmd, true);
+                if (node == null) return "ERR unauthorized";
+                double amt;
+                try { amt = Double.parseDouble(cmd[5]); } catch (NumberFormatException ex) { return "NO"; }
+                LocalParticipant p = LocalParticipant.INSTANCE;
+                try {
+                    boolean yes = cmd[2].equalsIgnoreCase("DEBIT")
+                            ? p.prepareDebit(cmd[1], cmd[3], cmd[4], amt, cmd[6], node)
+                            : p.prepareCredit(cmd[1], cmd[3], cmd[4], amt, cmd[6], node);
+                    return yes ? "OK" : "NO";
+                } catch (IOException ex) {
+                    return "ERR " + ex.getMessage();
+                }
+            }
+            case "COMMIT":
+            case "ABORT":
+                if (cmd.length != 5) return "ERR usage: " + cmd[0].toUpperCase() + " <txId> <node> <millis> <mac>";
+                if (TxAuth.verify(cmd, true) == null) return "ERR unauthorized";
+                try {
+                    if (cmd[0].equalsIgnoreCase("COMMIT")) return LocalParticipant.INSTANCE.commit(cmd[1]) ? "OK" : "UNKNOWN";
+                    LocalParticipant.INSTANCE.abort(cmd[1]);
+                    return "OK";
+                } catch (IOException ex) {
+                    return "ERR " + ex.getMessage();
+                }
+            case "TXDECISION": {
+                if (cmd.length != 5) return "ERR usage: TXDECISION <txId> <node> <millis> <mac>";
+                if (TxAuth.verify(cmd, false) == null) return "ERR unauthorized";
+                TransferCoordinator c = TransferCoordinator.existing();
+                return c == null ? "UNKNOWN" : c.decision(cmd[1]);
+            }
+            case "TXVERIFY": {
+                if (cmd.length != 5) return "ERR usage: TXVERIFY <txId>[,<txId>...] <node> <millis> <mac>";
+                if (TxAuth.verify(cmd, false) == null) return "ERR unauthorized";
+                try {
+                    Set<String> missing = TransferCoordinator.unconfirmed(TxAuth.NODE, Arrays.asList(cmd[1].split(",")));
+                    return "OK " + (missing.isEmpty() ? "-" : String.join(",", missing));
+                } catch (IOException ex) {
+                    return "ERR " + ex.getMessage();
+                }
+            }
+            default: return "ERR unknown command";
+        }
+    }
+
+    // the gate a GUI login applies: null when the card exists, is unlocked and the PIN matches
+    private static String checkCard(String card, String pin) {
+        ATMImplementation impl = LoginScreen.ACCOUNT_MODELS.get(card);
+        if (impl == null) return "ERR no such account";
+        if (impl.isLocked()) return "ERR card locked";
+        return impl.checkPin(pin) ? null : "ERR invalid pin";
+    }
+
+    private AccountType lookup(String[] cmd) {
+        if (cmd.length < 3) return null;
+        ATMImplementation impl = LoginScreen.ACCOUNT_MODELS.get(cmd[1]);
+        return impl == null ? null : impl.getAccount(cmd[2]);
+    }
+}
+
+/* ---------- End-of-day settlement ---------- */
+/**
+ * End-of-day settlement and reconciliation.
+ * One parallel pass over all cards; each account's DayControl is copied under that account's
+ * monitor only, so live traffic keeps flowing. Checks:
+ * - per account: opening + credits - debits == closing
+ * - daily limit counters agree with the day's withdrawal and transfer-out totals
+ * - globally: transfers out - transfers in == net of the transfer legs committed here (TransferJournal),
+ *   counting a leg that completed during the scan only if its account's copy already includes it
+ * - NaN or infinite totals are exceptions, never a pass
+ * - every leg whose other half is on another shard is confirmed by txId with the coordinator that
+ *   decided it (its log, locally or via TXVERIFY); unconfirmed legs are exceptions
+ * - commits this node coordinated that are still undelivered after ORPHAN_GRACE_MS, commits a
+ *   participant lost, and prepares this node could not honour are orphans
+ * Only exceptions are listed per account, so the report stays small on a large card base.
+ */
+class SettlementJob {
+    static final double EPS = 0.005;
+    static final long ORPHAN_GRACE_MS = 60_000;
+    static final int MAX_LISTED_EXCEPTIONS = 10_000;
+    private static final Path REPORT_DIR = Paths.get(System.getProperty("user.home"), "ATMReports");
+
+    static class Totals {
+        long cards, accounts, mismatches, drifts, untracked;
+        double opening, closing, deposits, withdrawals, transfersOut, transfersIn, loans, interest;
+        final List<String> exceptions = new ArrayList<>();
+        final Map<String, Long> versions = new HashMap<>(); // card/type -> copied version, accounts with transfers only
+
+        void add(Totals o) {
+            cards += o.cards; accounts += o.accounts;
+            mismatches += o.mismatches; drifts += o.drifts; untracked += o.untracked;
+            opening += o.opening; closing += o.closing;
+            deposits += o.deposits; withdrawals += o.withdrawals;
+            transfersOut += o.transfersOut; transfersIn += o.transfersIn;
+            loans += o.loans; interest += o.interest;
+            versions.putAll(o.versions);
+            int room = MAX_LISTED_EXCEPTIONS - exceptions.size();
+            exceptions.addAll(o.exceptions.subList(0, Math.min(room, o.exceptions.size())));
+        }
+
+        void exception(String line) {
+            if (exceptions.size() < MAX_LISTED_EXCEPTIONS) exceptions.add(line);
+        }
+    }
+
+    static class Result {
+        LocalDate day;
+        Totals totals;
+        List<String> orphans = new ArrayList<>();
+        List<String> unconfirmed = new ArrayList<>();
+        int crossShardLegs;
+        int legsDuringScan, legsAfterCopy;
+        double legNet;
+        double transferGap;
+        Path report;
+        long elapsedMs;
+
+        boolean balanced() {
+            return totals.mismatches == 0 && totals.drifts == 0 && orphans.isEmpty() && unconfirmed.isEmpty()
+                    && !off(transferGap, 0);
+        }
+
+        String summary() {
+            return "Settlement " + day + (balanced() ? " BALANCED" : " EXCEPTIONS")
+                    + " | cards " + totals.cards + ", accounts " + totals.accounts
+                    + " | mismatches " + totals.mismatches + ", limit drifts " + totals.drifts
+                    + ", orphaned transfers " + orphans.size() + ", unconfirmed cross-shard legs " + unconfirmed.size()
+                    + " | closing ₹" + String.format("%.2f", totals.closing)
+                    + " | " + elapsedMs + " ms | report: " + report;
+        }
+    }
+
+    public static Result run(LocalDate day) throws IOException {
+        long t0 = System.nanoTime();
+        Result r = new Result();
+        r.day = day;
+        try (TransferJournal.Watch watch = TransferJournal.watch(day)) {
+            r.totals = LoginScreen.ACCOUNT_MODELS.values().parallelStream()
+                    .collect(Totals::new, (t, impl) -> settleCard(day, impl, t), Totals::add);
+            r.legNet = watch.netBefore;
+            for (TransferJournal.Leg l : watch.during()) {
+                r.legsDuringScan++;
+                Long copied = r.totals.versions.get(l.card + "/" + l.type);
+                if (copied != null && copied >= l.version) r.legNet += l.signed();
+                else r.legsAfterCopy++;
+            }
+        }
+        r.transferGap = (r.totals.transfersOut - r.totals.transfersIn) - r.legNet;
+        reconcile(r, TransferJournal.crossShard(day));
+        TransferCoordinator coordinator = TransferCoordinator.existing();
+        if (coordinator != null) r.orphans.addAll(coordinator.undelivered(ORPHAN_GRACE_MS));
+        r.orphans.addAll(LocalParticipant.INSTANCE.failures());
+        r.elapsedMs = (System.nanoTime() - t0) / 1_000_000;
+        r.report = writeReport(r);
+        return r;
+    }
+
+    // each cross-shard leg must be a commit in the log of the coordinator that decided it
+    private static void reconcile(Result r, List<TransferJournal.Leg> legs) {
+        r.crossShardLegs = legs.size();
+        Map<String, List<TransferJournal.Leg>> byCoordinator = new HashMap<>();
+        for (TransferJournal.Leg l : legs) byCoordinator.computeIfAbsent(l.coordinator, k -> new ArrayList<>()).add(l);
+        for (Map.Entry<String, List<TransferJournal.Leg>> e : byCoordinator.entrySet()) {
+            List<String> ids = new ArrayList<>();
+            for (TransferJournal.Leg l : e.getValue()) ids.add(l.txId);
+            Set<String> missing;
+            String why;
+            try {
+                missing = TransferCoordinator.unconfirmed(e.getKey(), ids);
+                why = "no commit in the coordinator's log";
+            } catch (IOException ex) {
+                missing = new HashSet<>(ids);
+                why = "coordinator unreachable: " + ex.getMessage();
+            }
+            for (TransferJournal.Leg l : e.getValue()) {
+                if (missing.contains(l.txId)) r.unconfirmed.add("UNCONFIRMED " + l + " (" + why + ")");
+            }
+        }
+    }
+
+    private static void settleCard(LocalDate day, ATMImplementation impl, Totals t) {
+        t.cards++;
+        for (String type : impl.accountTypes()) {
+            AccountType.DayControl c = impl.getAccount(type).dayControl(day);
+            t.accounts++;
+            if (c == null) {
+                t.untracked++;
+                continue;
+            }
+            t.opening += c.opening; t.closing += c.closing;
+            t.deposits += c.deposits; t.withdrawals += c.withdrawals;
+            t.transfersOut += c.transfersOut; t.transfersIn += c.transfersIn;
+            t.loans += c.loans; t.interest += c.interest;
+
+            String id = impl.getCardNumber() + "/" + type;
+            if (c.transfersOut != 0 || c.transfersIn != 0) t.versions.put(id, c.version);
+            if (off(c.expectedClosing(), c.closing)) {
+                t.mismatches++;
+                t.exception("MISMATCH " + id + " expected ₹" + fmt(c.expectedClosing()) + " actual ₹" + fmt(c.closing));
+            }
+            if (off(c.dailyWithdrawn, c.withdrawals) || off(c.dailyTransferred, c.transfersOut)) {
+                t.drifts++;
+                t.exception("LIMIT_DRIFT " + id + " withdrawn counter ₹" + fmt(c.dailyWithdrawn) + " vs ₹" + fmt(c.withdrawals)
+                        + ", transferred counter ₹" + fmt(c.dailyTransferred) + " vs ₹" + fmt(c.transfersOut));
+            }
+        }
+    }
+
+    private static Path writeReport(Result r) throws IOException {
+        Files.createDirectories(REPORT_DIR);
+        Path out = REPORT_DIR.resolve("settlement_" + r.day + "_" + System.currentTimeMillis() + ".txt");
+        Totals t = r.totals;
+        try (BufferedWriter w = Files.newBufferedWriter(out, StandardCharsets.UTF_8)) {
+            w.write("End-of-day settlement for " + r.day + (r.balanced() ? " - BALANCED" : " - EXCEPTIONS") + "\n");
+            w.write("Cards: " + t.cards + "  Accounts: " + t.accounts + "  Untracked: " + t.untracked + "\n\n");
+            w.write("Opening balance total:  ₹" + fmt(t.opening) + "\n");
+            w.write("  + Deposits:           ₹" + fmt(t.deposits) + "\n");
+            w.write("  + Transfers in:       ₹" + fmt(t.transfersIn) + "\n");
+            w.write("  + Loans credited:     ₹" + fmt(t.loans) + "\n");
+            w.write("  + Interest:           ₹" + fmt(t.interest) + "\n");
+            w.write("  - Withdrawals:        ₹" + fmt(t.withdrawals) + "\n");
+            w.write("  - Transfers out:      ₹" + fmt(t.transfersOut) + "\n");
+            w.write("Expected closing total: ₹" + fmt(t.opening + t.deposits + t.transfersIn + t.loans + t.interest
+                    - t.withdrawals - t.transfersOut) + "\n");
+            w.write("Actual closing total:   ₹" + fmt(t.closing) + "\n\n");
+            w.write("Committed transfer legs, net out: ₹" + fmt(r.legNet) + "  unexplained gap: ₹" + fmt(r.transferGap) + "\n");
+            w.write("Transfer legs committed since start: " + TransferJournal.committedLegs()
+                    + "  cross-shard legs confirmed: " + (r.crossShardLegs - r.unconfirmed.size()) + "/" + r.crossShardLegs + "\n");
+            w.write("Legs completed during the scan: " + r.legsDuringScan + " (" + r.legsAfterCopy
+                    + " after their account was copied, left for the next run)\n\n");
+            w.write("Exceptions (" + (t.mismatches + t.drifts) + ", up to " + MAX_LISTED_EXCEPTIONS + " listed):\n");
+            for (String e : t.exceptions) w.write("  " + e + "\n");
+            w.write("Orphaned half-transfers (" + r.orphans.size() + "):\n");
+            for (String e : r.orphans) w.write("  " + e + "\n");
+            w.write("Unconfirmed cross-shard legs (" + r.unconfirmed.size() + "):\n");
+            for (String e : r.unconfirmed) w.write("  " + e + "\n");
+            w.write("\nElapsed: " + r.elapsedMs + " ms\n");
+        }
+        return out;
+    }
+
+    // differs by more than EPS, or either side is NaN / infinite
+    static boolean off(double a, double b) {
+        double d = a - b;
+        return !Double.isFinite(d) || Math.abs(d) > EPS;
+    }
+
+    private static String fmt(double d) { return String.format("%.2f", d); }
+}
+
+/* ---------- Audit log ---------- */
+/**
+ * Tamper-evident audit trail for admin and security events, kept apart from customer history.
+ * - record() only enqueues, onto a bounded queue; a background thread writes batches and forces each
+ *   batch to disk. A failing writer is reported once and retried; records refused meanwhile by the full
+ *   queue are logged afterwards as one DROPPED record
+ * - every record carries the SHA-256 of its predecessor, so editing, dropping or reordering
+ *   records breaks the chain
+ * - a CHECKPOINT record holding an HMAC-SHA256 of the chain head is appended every
+ *   CHECKPOINT_EVERY records, after CHECKPOINT_INTERVAL_MS of activity, on shutdown and on reopening
+ *   a log whose head is not a checkpoint
+ * - verify() checks a log in parallel chunks over a memory-mapped file, then the joins between chunks;
+ *   a log without checkpoints or with more than CHECKPOINT_EVERY records between two of them fails,
+ *   and records after the last checkpoint are reported as an unsigned tail rather than verified
+ *
+ * Record: seq \t timeMillis \t actor \t event \t detail \t prevHash \t sha256(all preceding fields)
+ * The HMAC key comes from ATM_AUDIT_KEY, else the file given with --audit-key. Without either the
+ * writer generates audit.key next to the log; that only detects edits by someone who cannot read the
+ * key, since whoever can rewrite the log beside it can also re-sign it, so production should keep
+ * the key elsewhere. Verification never creates a key: it needs ATM_AUDIT_KEY or --audit-key.
+ */
+class AuditLog {
+    static final int CHECKPOINT_EVERY = 1000;
+    static final long CHECKPOINT_INTERVAL_MS = 60_000;
+    static final int BATCH = 1024;
+    static final int QUEUE_CAPACITY = 1 << 16;
+    static final long RETRY_MAX_MS = 30_000;
+    static final String GENESIS = "0000000000000000000000000000000000000000000000000000000000000000";
+    static final String CHECKPOINT = "CHECKPOINT";
+    private static final Path DIR = Paths.get(System.getProperty("atm.audit.dir",
+            System.getProperty("user.home") + File.separator + "ATMAudit"));
+    static final Path LOG = DIR.resolve("audit.log");
+    private static volatile Path keyFile; // --audit-key
+
+    private static class Pending {
+        final long timeMillis = System.currentTimeMillis();
+        final String actor, event, detail;
+
+        Pending(String actor, String event, String detail) {
+            this.actor = actor;
+            this.event = event;
+            this.detail = detail;
+        }
+    }
+
+    private static final Pending STOP = new Pending(null, null, null);
+    private static final BlockingQueue<Pending> QUEUE = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private static final AtomicLong DROPPED = new AtomicLong(); // records refused by a full queue, not yet logged
+    private static volatile Thread writer;
+    private static volatile String failure; // why the writer is not writing, null while it is
+
+    // chain head, owned by the writer thread
+    private static long headSeq;
+    private static String headHash;
+
+    public static void record(String actor, String event, String detail) {
+        if (!QUEUE.offer(new Pending(actor, event, detail)) && DROPPED.getAndIncrement() == 0) {
+            System.err.println("Audit queue full (" + (failure == null ? "writer behind" : failure)
+                    + "); dropping records until it drains");
+        }
+        if (writer == null) startWriter();
+    }
+
+    private static synchronized void startWriter() {
+        if (writer != null) return;
+        Thread t = new Thread(AuditLog::writeLoop, "audit-writer");
+        t.setDaemon(true);
+        t.start();
+        writer = t;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                QUEUE.offer(STOP, 1, TimeUnit.SECONDS);
+                t.join(5000);
+            } catch (InterruptedException ignored) {}
+        }, "audit-shutdown"));
+    }
+
+    static String status() {
+        String f = failure;
+        return (f == null ? "writing" : "FAILING " + f) + " queued=" + QUEUE.size() + " dropped=" + DROPPED.get();
+    }
+
+    /*
+     * A failed write or open is reported once, then the file is reopened with backoff; the batch in
+     * hand is kept and written again after the head is recovered.
+     * Records refused by a full queue meanwhile are counted and logged as one DROPPED record.
+     */
+    private static void writeLoop() {
+        List<Pending> batch = new ArrayList<>(BATCH);
+        boolean stopping = false;
+        long backoff = 1000;
+        Mac mac = null;
+        while (true) {
+            try {
+                if (mac == null) mac = hmac();
+                Files.createDirectories(DIR);
+                boolean signed = recoverHead();
+                try (FileChannel ch = FileChannel.open(LOG, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND)) {
+                    MessageDigest sha = MessageDigest.getInstance("SHA-256");
+                    StringBuilder sb = new StringBuilder();
+                    long lastCheckpoint = System.currentTimeMillis();
+                    if (!signed) { // records a crash or failed write left after the last checkpoint
+                        append(sb, sha, lastCheckpoint, "system", CHECKPOINT, sign(mac, headSeq, headHash));
+                        write(ch, sb);
+                    }
+                    long sinceCheckpoint = 0;
+                    while (true) {
+                        if (batch.isEmpty()) {
+                            Pending first = QUEUE.poll(1, TimeUnit.SECONDS);
+                            if (first != null) {
+                                batch.add(first);
+                                QUEUE.drainTo(batch, BATCH - 1);
+                            }
+                            long dropped = DROPPED.getAndSet(0);
+                            if (dropped > 0) batch.add(new Pending("system", "DROPPED", dropped + " records, audit queue full"));
+                        }
+                        sb.setLength(0);
+                        for (Pending p : batch) {
+                            if (p == STOP) { stopping = true; continue; }
+                            append(sb, sha, p.timeMillis, p.actor, p.event, p.detail);
+                            if (++sinceCheckpoint == CHECKPOINT_EVERY) {
+                                append(sb, sha, p.timeMillis, "system", CHECKPOINT, sign(mac, headSeq, headHash));
+                                sinceCheckpoint = 0;
+                                lastCheckpoint = System.currentTimeMillis();
+                            }
+                        }
+                        long now = System.currentTimeMillis();
+                        if (sinceCheckpoint > 0 && (stopping || now - lastCheckpoint >= CHECKPOINT_INTERVAL_MS)) {
+                            append(sb, sha, now, "system", CHECKPOINT, sign(mac, headSeq, headHash));
+                            sinceCheckpoint = 0;
+                            lastCheckpoint = now;
+                        }
+                        write(ch, sb); // one fsync per batch
+                        batch.clear();
+                        if (failure != null) {
+                            System.err.println("Audit log writer resumed");
+                            failure = null;
+                            backoff = 1000;
+                        }
+                        if (stopping) return;
+                    }
+                }
+            } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+                if (failure == null) System.err.println("Audit log writer failing, retrying: " + ex);
+                failure = ex.toString();
+                if (stopping) return;
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, RETRY_MAX_MS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // all or nothing: a failed write is cut back off, so a retried batch is not logged twice
+    private static void write(FileChannel ch, StringBuilder sb) throws IOException {
+        if (sb.length() == 0) return;
+        ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        long at = ch.size();
+        try {
+            while (buf.hasRemaining()) ch.write(buf);
+            ch.force(false);
+        } catch (IOException ex) {
+            try { ch.truncate(at); } catch (IOException ignored) {
+                // recoverHead cuts a torn line off on reopen; complete ones may then be logged twice
+            }
+            throw ex;
+        }
+    }
+
+    private static void append(StringBuilder sb, MessageDigest sha, long time, String actor, String event, String detail) {
+        String body = (headSeq + 1) + "\t" + time + "\t" + LineCodec.esc(actor) + "\t" + LineCodec.esc(event)
+                + "\t" + LineCodec.esc(detail) + "\t" + headHash;
+        String hash = hex(sha.digest(body.getBytes(StandardCharsets.UTF_8)));
+        sb.append(body).append('\t').append(hash).append('\n');
+        headSeq++;
+        headHash = hash;
+    }
+
+    // continue the chain of an existing log; a torn last line from a crash is cut off.
+    // True if the head is a checkpoint (or the log is empty).
+    private static boolean recoverHead() throws IOException {
+        headSeq = 0;
+        headHash = GENESIS;
+        if (!Files.exists(LOG)) return true;
+        try (FileChannel ch = FileChannel.open(LOG, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = ch.size();
+            if (size == 0) return true;
+            int tail = (int) Math.min(size, 64 * 1024);
+            ByteBuffer buf = ByteBuffer.allocate(tail);
+            ch.read(buf, size - tail);
+            byte[] b = buf.array();
+            int end = tail;
+            while (end > 0 && b[end - 1] != '\n') end--;
+            if (end < tail) ch.truncate(size - tail + end);
+            if (end == 0) return true;
+            int start = end - 1;
+            while (start > 0 && b[start - 1] != '\n') start--;
+            String[] f = new String(b, start, end - 1 - start, StandardCharsets.UTF_8).split("\t", -1);
+            headSeq = Long.parseLong(f[0]);
+            headHash = f[f.length - 1];
+            return f.length > 3 && f[3].equals(CHECKPOINT);
+        }
+    }
+
+    static void setKeyFile(Path file) { keyFile = file; }
+
+    // writer side: ATM_AUDIT_KEY, else the --audit-key file, else audit.key beside the log (created on first use)
+    static Mac hmac() throws IOException, GeneralSecurityException {
+        String key = configuredKey();
+        if (key == null) {
+            Path keyFile = DIR.resolve("audit.key");
+            System.err.println("Audit key kept beside the log in " + keyFile
+                    + "; set ATM_AUDIT_KEY or --audit-key to store it where the log's writers cannot reach it");
+            if (!Files.exists(keyFile)) {
+                byte[] k = new byte[32];
+                new SecureRandom().nextBytes(k);
+                Files.createDirectories(DIR);
+                Files.write(keyFile, hex(k).getBytes(StandardCharsets.US_ASCII));
+                try {
+                    Files.setPosixFilePermissions(keyFile, PosixFilePermissions.fromString("rw-------"));
+                } catch (UnsupportedOperationException ignored) {
+                    // not a POSIX file system
+                }
+            }
+            key = new String(Files.readAllBytes(keyFile), StandardCharsets.US_ASCII).trim();
+        }
+        return mac(key);
+    }
+
+    private static String configuredKey() throws IOException {
+        String key = System.getenv("ATM_AUDIT_KEY");
+        if (key == null && keyFile != null) key = new String(Files.readAllBytes(keyFile), StandardCharsets.US_ASCII).trim();
+        return key;
+    }
+
+    private static Mac mac(String key) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        return mac;
+    }
+
+    static String sign(Mac mac, long seq, String hash) {
+        return hex(mac.doFinal((seq + ":" + hash).getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    static String hex(byte[] b) {
+        char[] out = new char[b.length * 2];
+        for (int i = 0; i < b.length; i++) {
+            out[2 * i] = Character.forDigit((b[i] >> 4) & 0xF, 16);
+            out[2 * i + 1] = Character.forDigit(b[i] & 0xF, 16);
+        }
+        return new String(out);
+    }
+
+    /* ---- verification ---- */
+
+    static class Chunk {
+        long records, checkpoints, errors;
+        long firstSeq = -1, lastSeq = -1;
+        long firstCheckpoint = -1, lastCheckpoint = -1; // seqs of this chunk's checkpoint records
+        String firstPrev, lastHash;
+        final List<String> problems = new ArrayList<>();
+
+        void problem(String p) {
+            errors++;
+            if (problems.size() < 20) problems.add(p);
+        }
+    }
+
+    // the key must be the one the log was written with, so it is never generated here
+    public static String verify(Path path) throws IOException, GeneralSecurityException {
+        long t0 = System.nanoTime();
+        String key = configuredKey();
+        if (key == null) return "NO KEY | set ATM_AUDIT_KEY or pass --audit-key <file> before --verify-audit";
+        Mac mac = mac(key);
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            // enough chunks to use every core, each small enough to map (< 1 GB)
+            int n = (int) Math.max(size / (1L << 30) + 1,
+                    Math.min(Runtime.getRuntime().availableProcessors() * 4L, size / (1L << 20) + 1));
+            long[] starts = new long[n + 1];
+            starts[n] = size;
+            ByteBuffer probe = ByteBuffer.allocate(64 * 1024);
+            for (int i = 1; i < n; i++) starts[i] = nextLineStart(ch, Math.max(size * i / n, starts[i - 1]), size, probe);
+
+            List<Chunk> chunks = IntStream.range(0, n).parallel()
+                    .mapToObj(i -> verifyChunk(ch, starts[i], starts[i + 1], mac))
+                    .collect(Collectors.toList());
+
+            Chunk total = new Chunk();
+            Chunk prev = null;
+            long signedUpTo = 0; // seq of the last checkpoint so far, 0 for the genesis
+            for (Chunk c : chunks) {
+                total.records += c.records;
+                total.checkpoints += c.checkpoints;
+                total.errors += c.errors;
+                total.problems.addAll(c.problems);
+                if (c.records == 0) continue;
+                long expectSeq = prev == null ? 1 : prev.lastSeq + 1;
+                String expectPrev = prev == null ? GENESIS : prev.lastHash;
+                if (c.firstSeq != expectSeq) total.problem("seq gap before " + c.firstSeq);
+                if (!expectPrev.equals(c.firstPrev)) total.problem("chain broken before seq " + c.firstSeq);
+                if (c.checkpoints > 0) {
+                    checkpointGap(total, signedUpTo, c.firstCheckpoint);
+                    signedUpTo = c.lastCheckpoint;
+                }
+                prev = c;
+            }
+            long head = prev == null ? 0 : prev.lastSeq;
+            long tail = head - signedUpTo; // records no checkpoint vouches for
+            if (total.records > 0 && total.checkpoints == 0) total.problem("no checkpoint in the log");
+            else if (tail > CHECKPOINT_EVERY) total.problem(tail + " records after the last checkpoint at seq " + signedUpTo);
+            long ms = (System.nanoTime() - t0) / 1_000_000;
+            StringBuilder sb = new StringBuilder(total.errors == 0 ? "VALID" : "TAMPERED");
+            sb.append(" | records ").append(total.records - tail).append(" verified");
+            if (tail > 0) sb.append(", unsigned tail (").append(tail).append(" records)");
+            sb.append(", checkpoints ").append(total.checkpoints)
+              .append(", errors ").append(total.errors).append(" | ").append(size >> 20).append(" MB in ")
+              .append(ms).append(" ms, ").append(n).append(" chunks");
+            if (head > 0) sb.append(" | head ").append(head);
+            for (String p : total.problems) sb.append("\n  ").append(p);
+            return sb.toString();
+        }
+    }
+
+    // more than CHECKPOINT_EVERY records between two checkpoints: the writer never leaves that many unsigned
+    private static void checkpointGap(Chunk c, long from, long to) {
+        if (to - from - 1 > CHECKPOINT_EVERY) c.problem((to - from - 1) + " records between checkpoints at seq " + from + " and " + to);
+    }
+
+    private static long nextLineStart(FileChannel ch, long pos, long size, ByteBuffer probe) throws IOException {
+        while (pos < size) {
+            probe.clear();
+            int r = ch.read(probe, pos);
+            if (r <= 0) break;
+            for (int i = 0; i < r; i++) if (probe.get(i) == '\n') return pos + i + 1;
+            pos += r;
+        }
+        return size;
+    }
+
+    private static Chunk verifyChunk(FileChannel ch, long from, long to, Mac sharedMac) {
+        Chunk c = new Chunk();
+        if (to <= from) return c;
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            Mac mac = (Mac) sharedMac.clone();
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+            int limit = buf.limit();
+            int[] tabs = new int[6];
+            int prevHashAt = -1; // offset of the previous record's hash within this chunk
+            int lineStart = 0;
+            while (lineStart < limit) {
+                int nt = 0, p = lineStart;
+                while (p < limit && buf.get(p) != '\n') {
+                    if (buf.get(p) == '\t' && nt < 6) tabs[nt++] = p;
+                    p++;
+                }
+                int lineEnd = p;
+                if (nt < 6 || lineEnd - tabs[5] - 1 != 64) {
+                    c.problem("malformed record at byte " + (from + lineStart));
+                    prevHashAt = -1;
+                    lineStart = lineEnd + 1;
+                    continue;
+                }
+                long seq = parseLong(buf, lineStart, tabs[0]);
+                if (c.records == 0) {
+                    c.firstSeq = seq;
+                    c.firstPrev = ascii(buf, tabs[4] + 1, tabs[5]);
+                } else {
+                    if (seq != c.lastSeq + 1) c.problem("seq " + seq + " follows " + c.lastSeq);
+                    if (prevHashAt < 0 || !sameBytes(buf, prevHashAt, tabs[4] + 1, 64)) c.problem("chain broken at seq " + seq);
+                }
+                ByteBuffer body = buf.duplicate();
+                body.position(lineStart).limit(tabs[5]);
+                sha.update(body);
+                if (!hexEquals(sha.digest(), buf, tabs[5] + 1)) c.problem("hash mismatch at seq " + seq);
+                if (tabs[3] - tabs[2] - 1 == CHECKPOINT.length() && ascii(buf, tabs[2] + 1, tabs[3]).equals(CHECKPOINT)) {
+                    if (c.checkpoints++ == 0) c.firstCheckpoint = seq;
+                    else checkpointGap(c, c.lastCheckpoint, seq);
+                    c.lastCheckpoint = seq;
+                    String expected = sign(mac, seq - 1, ascii(buf, tabs[4] + 1, tabs[5]));
+                    if (!expected.equals(ascii(buf, tabs[3] + 1, tabs[4]))) c.problem("bad checkpoint signature at seq " + seq);
+                }
+                c.records++;
+                c.lastSeq = seq;
+                prevHashAt = tabs[5] + 1;
+                lineStart = lineEnd + 1;
+            }
+            if (prevHashAt >= 0) c.lastHash = ascii(buf, prevHashAt, prevHashAt + 64);
+        } catch (IOException | GeneralSecurityException | CloneNotSupportedException | NumberFormatException ex) {
+            c.problem("chunk at byte " + from + ": " + ex);
+        }
+        return c;
+    }
+
+    private static long parseLong(ByteBuffer b, int from, int to) {
+        long v = 0;
+        for (int i = from; i < to; i++) {
+            int d = b.get(i) - '0';
+            if (d < 0 || d > 9) throw new NumberFormatException("bad seq");
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    private static String ascii(ByteBuffer b, int from, int to) {
+        byte[] out = new byte[to - from];
+        for (int i = 0; i < out.length; i++) out[i] = b.get(from + i);
+        return new String(out, StandardCharsets.UTF_8);
+    }
+
+    private static boolean sameBytes(ByteBuffer b, int x, int y, int len) {
+        for (int i = 0; i < len; i++) if (b.get(x + i) != b.get(y + i)) return false;
+        return true;
+    }
+
+    private static boolean hexEquals(byte[] digest, ByteBuffer b, int at) {
+        for (int i = 0; i < digest.length; i++) {
+            if (b.get(at + 2 * i) != Character.forDigit((digest[i] >> 4) & 0xF, 16)) return false;
+            if (b.get(at + 2 * i + 1) != Character.forDigit(digest[i] & 0xF, 16)) return false;
+        }
+        return true;
+    }
+}
+
+/* ---------- Admission control ---------- */
+// ordinal order is priority order: under overload inquiries are queued behind and shed before transactions
+enum RequestClass { TRANSACTION, AUTH, INQUIRY }
+
+/**
+ * Admission control in front of the account model.
+ * - token buckets per terminal and per card; PIN attempts (AUTH) get their own, much slower buckets,
+ *   so one terminal spraying PINs across many cards is throttled even though each card's lockout is not hit;
+ *   requests that carry a PIN (admitWithPin) draw on them too, and refundPin returns the token for a right PIN
+ * - a global concurrency limit; INQUIRY may only use what is left after TRANSACTION_RESERVE
+ * - when full, requests wait in a short per-class queue (bounded length and wait), higher classes first;
+ *   anything that would wait longer is shed, which keeps latency of admitted work bounded
+ *
+ * Usage: try (AdmissionControl.Permit p = AdmissionControl.GLOBAL.admit(terminal, card, cls)) {
+ *            if (!p.granted()) -> show Texts.t(p.reason()); else do the work
+ *        }
+ * The Swing event thread uses admitNow(), which sheds instead of queueing, and takes the permit only
+ * after any dialog has been answered, so a permit is never held while waiting for a person.
+ */
+class AdmissionControl {
+    static final String LOCAL_TERMINAL = System.getProperty("atm.terminal", "local");
+    static final AdmissionControl GLOBAL = new AdmissionControl(
+            Math.max(8, Runtime.getRuntime().availableProcessors() * 2), 2);
+
+    // requests per second / burst
+    static final double TERMINAL_RATE = 20, TERMINAL_BURST = 40;
+    static final double CARD_RATE = 5, CARD_BURST = 10;
+    static final double TERMINAL_AUTH_RATE = 0.5, TERMINAL_AUTH_BURST = 10;
+    static final double CARD_AUTH_RATE = 0.1, CARD_AUTH_BURST = 5;
+
+    static final int[] QUEUE_LIMIT = { 64, 32, 8 };          // by RequestClass ordinal
+    static final long[] MAX_WAIT_MS = { 500, 250, 50 };
+    static final long IDLE_BUCKET_MS = 60_000;
+
+    static class TokenBucket {
+        private final double rate, burst;
+        private double tokens;
+        private long lastNanos = System.nanoTime();
+
+        TokenBucket(double rate, double burst) {
+            this.rate = rate;
+            this.burst = burst;
+            this.tokens = burst;
+        }
+
+        synchronized boolean tryAcquire() {
+            refill();
+            if (tokens < 1) return false;
+            tokens -= 1;
+            return true;
+        }
+
+        synchronized void refund() { tokens = Math.min(burst, tokens + 1); }
+
+        // a full bucket behaves exactly like a new one, so it can be dropped
+        synchronized boolean full() {
+            refill();
+            return tokens >= burst;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastNanos) / 1e9 * rate);
+            lastNanos = now;
+        }
+    }
+
+    /* Outcome of admit(); granted permits must be closed, refusals are shared constants. */
+    static final class Permit implements AutoCloseable {
+        private final AdmissionControl owner;
+        private final RequestClass cls;
+        private final String reason;
+
+        private Permit(AdmissionControl owner, RequestClass cls, String reason) {
+            this.owner = owner;
+            this.cls = cls;
+            this.reason = reason;
+        }
+
+        boolean granted() { return reason == null; }
+        String reason() { return reason; } // Texts key
+
+        @Override
+        public void close() {
+            if (reason == null) owner.release(cls);
+        }
+    }
+
+    private final Permit rateLimited = new Permit(this, null, "rate_limited");
+    private final Permit shed = new Permit(this, null, "busy");
+    private final Permit[] grants = new Permit[RequestClass.values().length];
+
+    private final Map<String, TokenBucket> terminalBuckets = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> cardBuckets = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> terminalAuthBuckets = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> cardAuthBuckets = new ConcurrentHashMap<>();
+
+    private final int maxConcurrent;
+    private final int transactionReserve;
+    private int inFlight = 0;
+    private final int[] inFlightByClass = new int[RequestClass.values().length];
+    private final int[] queued = new int[RequestClass.values().length];
+
+    private final LongAdder[] admitted = adders(), limited = adders(), shedCount = adders();
+
+    AdmissionControl(int maxConcurrent, int transactionReserve) {
+        this.maxConcurrent = maxConcurrent;
+        this.transactionReserve = transactionReserve;
+        for (RequestClass c : RequestClass.values()) grants[c.ordinal()] = new Permit(this, c, null);
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "admission-sweep");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleAtFixedRate(this::sweep, IDLE_BUCKET_MS, IDLE_BUCKET_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static LongAdder[] adders() {
+        LongAdder[] a = new LongAdder[RequestClass.values().length];
+        for (int i = 0; i < a.length; i++) a[i] = new LongAdder();
+        return a;
+    }
+
+    public Permit admit(String terminal, String card, RequestClass cls) {
+        return admit(terminal, card, cls, false, MAX_WAIT_MS[cls.ordinal()]);
+    }
+
+    // a request carrying a PIN is also a PIN attempt: it draws on the AUTH buckets as well as its own class
+    public Permit admitWithPin(String terminal, String card, RequestClass cls) {
+        return admit(terminal, card, cls, true, MAX_WAIT_MS[cls.ordinal()]);
+    }
+
+    // the PIN was right: give back what admitWithPin took from the AUTH buckets, so only wrong ones use them up
+    public void refundPin(String terminal, String card) {
+        TokenBucket t = terminalAuthBuckets.get(terminal);
+        if (t != null) t.refund();
+        TokenBucket c = card == null ? null : cardAuthBuckets.get(card);
+        if (c != null) c.refund();
+    }
+
+    // for threads that must not block (the Swing event thread): no queueing, shed when full
+    public Permit admitNow(String terminal, String card, RequestClass cls) {
+        return admit(terminal, card, cls, false, 0);
+    }
+
+    private Permit admit(String terminal, String card, RequestClass cls, boolean pin, long maxWaitMs) {
+        if (!rate(terminal, card, cls == RequestClass.AUTH || pin)) {
+            limited[cls.ordinal()].increment();
+            return rateLimited;
+        }
+        if (!acquire(cls, maxWaitMs)) {
+            shedCount[cls.ordinal()].increment();
+            return shed;
+        }
+        admitted[cls.ordinal()].increment();
+        return grants[cls.ordinal()];
+    }
+
+    // the AUTH buckets last, so a request the ordinary buckets refuse costs no PIN attempt
+    private boolean rate(String terminal, String card, boolean auth) {
+        if (!terminalBuckets.computeIfAbsent(terminal, k -> new TokenBucket(TERMINAL_RATE, TERMINAL_BURST)).tryAcquire()) return false;
+        if (card != null && !cardBuckets.computeIfAbsent(card, k -> new TokenBucket(CARD_RATE, CARD_BURST)).tryAcquire()) return false;
+        if (!auth) return true;
+        if (!terminalAuthBuckets.computeIfAbsent(terminal, k -> new TokenBucket(TERMINAL_AUTH_RATE, TERMINAL_AUTH_BURST)).tryAcquire()) return false;
+        return card == null || cardAuthBuckets.computeIfAbsent(card, k -> new TokenBucket(CARD_AUTH_RATE, CARD_AUTH_BURST)).tryAcquire();
+    }
+
+    private boolean canRun(RequestClass cls) {
+        int limit = cls == RequestClass.INQUIRY ? maxConcurrent - transactionReserve : maxConcurrent;
+        if (inFlight >= limit) return false;
+        for (int i = 0; i < cls.ordinal(); i++) if (queued[i] > 0) return false; // higher classes go first
+        return true;
+    }
+
+    private synchronized boolean acquire(RequestClass cls, long maxWaitMs) {
+        if (canRun(cls)) {
+            inFlight++;
+            inFlightByClass[cls.ordinal()]++;
+            return true;
+        }
+        int c = cls.ordinal();
+        if (maxWaitMs <= 0 || queued[c] >= QUEUE_LIMIT[c]) return false;
+        queued[c]++;
+        try {
+            long deadline = System.nanoTime() + maxWaitMs * 1_000_000L;
+            while (true) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return false;
+                try {
+                    wait(Math.max(1, left / 1_000_000L));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                if (canRun(cls)) {
+                    inFlight++;
+                    inFlightByClass[c]++;
+                    return true;
+                }
+            }
+        } finally {
+            queued[c]--;
+            notifyAll(); // a lower class may be waiting on us
+        }
+    }
+
+    private synchronized void release(RequestClass cls) {
+        inFlight--;
+        inFlightByClass[cls.ordinal()]--;
+        notifyAll();
+    }
+
+    private void sweep() {
+        for (Map<String, TokenBucket> m : Arrays.asList(terminalBuckets, cardBuckets, terminalAuthBuckets, cardAuthBuckets)) {
+            m.values().removeIf(TokenBucket::full);
+        }
+    }
+
+    public synchronized String status() {
+        StringBuilder sb = new StringBuilder("inFlight=").append(inFlight).append('/').append(maxConcurrent);
+        for (RequestClass c : RequestClass.values()) {
+            int i = c.ordinal();
+            sb.append(' ').append(c).append("[admitted=").append(admitted[i].sum())
+              .append(" limited=").append(limited[i].sum())
+              .append(" shed=").append(shedCount[i].sum())
+              .append(" running=").append(inFlightByClass[i])
+              .append(" queued=").append(queued[i]).append(']');
+        }
+        return sb.toString();
+    }
+}
+
+/* ---------- Bulk import ---------- */
+/**
+ * Bulk card import for cold start, replacing the hardcoded sample cards at scale.
+ * - CSV: card,pin,savings,current per line (a header line starting with "card" is skipped)
+ * - Binary (*.atmb): "ATMB", int count, then fixed RECORD bytes per card:
+ *   card (16 bytes ASCII, space padded) | pin (4 bytes ASCII) | savings (double) | current (double)
+ * The file is memory-mapped and cut into chunks (at line or record boundaries) that are parsed and
+ * turned into ATMImplementations in parallel. Account history is created lazily on first read.
+ * Run before replication starts, so followers receive the imported cards in their snapshot.
+ * Every imported card stays live, so GC copying dominates a large import; size the heap up front and
+ * promote directly, e.g. -Xms8g -Xmx8g -XX:+UseParallelGC -XX:MaxTenuringThreshold=0.
+ */
+class BulkLoader {
+    static final byte[] MAGIC = { 'A', 'T', 'M', 'B' };
+    static final int HEADER = 8;
+    static final int RECORD = 36;
+    static final long MAX_CHUNK = 256L << 20;
+
+    static class Stats {
+        final LongAdder cards = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        long bytes;
+        long elapsedMs;
+
+        String summary() {
+            double secs = Math.max(elapsedMs, 1) / 1000.0;
+            return "Imported " + cards.sum() + " cards (" + rejected.sum() + " rejected) in " + elapsedMs + " ms | "
+                    + String.format("%.0f cards/s, %.1f MB/s", cards.sum() / secs, bytes / 1048576.0 / secs);
+        }
+    }
+
+    public static Stats load(Path file) throws IOException {
+        long t0 = System.nanoTime();
+        Stats st = new Stats();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            st.bytes = ch.size();
+            if (file.toString().endsWith(".atmb")) loadBinary(ch, st);
+            else loadCsv(ch, st);
+        }
+        st.elapsedMs = (System.nanoTime() - t0) / 1_000_000;
+        return st;
+    }
+
+    private static int chunkCount(long bytes) {
+        return (int) Math.max(bytes / MAX_CHUNK + 1,
+                Math.min(Runtime.getRuntime().availableProcessors() * 4L, bytes / (1L << 20) + 1));
+    }
+
+    private static void loadBinary(FileChannel ch, Stats st) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(HEADER);
+        ch.read(head, 0);
+        head.flip();
+        for (byte b : MAGIC) if (head.remaining() == 0 || head.get() != b) throw new IOException("not an .atmb file");
+        long count = Math.min(head.getInt() & 0xFFFFFFFFL, (ch.size() - HEADER) / RECORD);
+        int n = chunkCount(count * RECORD);
+        long per = (count + n - 1) / n;
+        IntStream.range(0, n).parallel().forEach(i -> {
+            long from = i * per, to = Math.min(count, from + per);
+            if (from >= to) return;
+            try {
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, HEADER + from * RECORD, (to - from) * RECORD);
+                byte[] rec = new byte[20];
+                for (long r = from; r < to; r++) {
+                    buf.get(rec);
+                    double savings = buf.getDouble(), current = buf.getDouble();
+                    int cardLen = 16;
+                    while (cardLen > 0 && rec[cardLen - 1] == ' ') cardLen--;
+                    add(new String(rec, 0, cardLen, StandardCharsets.US_ASCII),
+                            new String(rec, 16, 4, StandardCharsets.US_ASCII), savings, current, st);
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+    }
+
+    private static void loadCsv(FileChannel ch, Stats st) throws IOException {
+        long size = ch.size();
+        int n = chunkCount(size);
+        long[] starts = new long[n + 1];
+        starts[n] = size;
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        for (int i = 1; i < n; i++) starts[i] = nextLine(ch, Math.max(size * i / n, starts[i - 1]), size, probe);
+        IntStream.range(0, n).parallel().forEach(i -> {
+            if (starts[i + 1] <= starts[i]) return;
+            try {
+                parseCsv(ch.map(FileChannel.MapMode.READ_ONLY, starts[i], starts[i + 1] - starts[i]), st);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+    }
+
+    private static long nextLine(FileChannel ch, long pos, long size, ByteBuffer probe) throws IOException {
+        while (pos < size) {
+            probe.clear();
+            int r = ch.read(probe, pos);
+            if (r <= 0) break;
+            for (int i = 0; i < r; i++) if (probe.get(i) == '\n') return pos + i + 1;
+            pos += r;
+        }
+        return size;
+    }
+
+    private static void parseCsv(MappedByteBuffer buf, Stats st) {
+        int limit = buf.limit();
+        int[] comma = new int[3];
+        byte[] scratch = new byte[64];
+        int p = 0;
+        while (p < limit) {
+            int start = p, nc = 0;
+            while (p < limit && buf.get(p) != '\n') {
+                if (buf.get(p) == ',' && nc < 3) comma[nc++] = p;
+                p++;
+            }
+            int end = p > start && buf.get(p - 1) == '\r' ? p - 1 : p;
+            p++;
+            if (end == start || buf.get(start) == 'c') continue; // blank or header
+            if (nc < 3) {
+                st.rejected.increment();
+                continue;
+            }
+            double savings = parseAmount(buf, comma[1] + 1, comma[2], scratch);
+            double current = parseAmount(buf, comma[2] + 1, end, scratch);
+            add(ascii(buf, start, comma[0], scratch), ascii(buf, comma[0] + 1, comma[1], scratch), savings, current, st);
+        }
+    }
+
+    private static String ascii(ByteBuffer b, int from, int to, byte[] scratch) {
+        int len = Math.min(to - from, scratch.length);
+        for (int i = 0; i < len; i++) scratch[i] = b.get(from + i);
+        return new String(scratch, 0, len, StandardCharsets.US_ASCII).trim();
+    }
+
+    // plain "123" / "123.45" without a String; anything else goes through Double.parseDouble
+    private static double parseAmount(ByteBuffer b, int from, int to, byte[] scratch) {
+        long whole = 0, frac = 0, scale = 1;
+        boolean dot = false;
+        for (int i = from; i < to; i++) {
+            int c = b.get(i);
+            if (c == '.' && !dot) {
+                dot = true;
+            } else if (c >= '0' && c <= '9' && scale < 1_000_000_000L) {
+                if (dot) { frac = frac * 10 + (c - '0'); scale *= 10; }
+                else whole = whole * 10 + (c - '0');
+            } else {
+                try {
+                    return Double.parseDouble(ascii(b, from, to, scratch));
+                } catch (NumberFormatException ex) {
+                    return -1;
+                }
+            }
+        }
+        return to > from ? whole + (double) frac / scale : -1;
+    }
+
+    private static void add(String card, String pin, double savings, double current, Stats st) {
+        if (card.isEmpty() || !allDigits(card) || pin.length() != 4 || !allDigits(pin) || !(savings >= 0) || !(current >= 0)
+                || !Double.isFinite(savings) || !Double.isFinite(current)) {
+            st.rejected.increment();
+            return;
+        }
+        if (LoginScreen.registerIfAbsent(new ATMImplementation(card, pin, savings, current, true))) st.cards.increment();
+        else st.rejected.increment();
+    }
+
+    private static boolean allDigits(String s) {
+        for (int i = 0; i < s.length(); i++) if (s.charAt(i) < '0' || s.charAt(i) > '9') return false;
+        return true;
+    }
+
+    /* Writes a synthetic dataset of n cards (format by extension) for load testing. */
+    public static void generate(Path out, long n) throws IOException {
+        Random rnd = new Random(42);
+        if (out.toString().endsWith(".atmb")) {
+            try (FileChannel ch = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.allocate(RECORD * 8192);
+                buf.put(MAGIC).putInt((int) n);
+                for (long i = 0; i < n; i++) {
+                    if (buf.remaining() < RECORD) flush(ch, buf);
+                    byte[] card = String.format("%-16s", String.format("4%015d", i)).getBytes(StandardCharsets.US_ASCII);
+                    buf.put(card).put(String.format("%04d", rnd.nextInt(10000)).getBytes(StandardCharsets.US_ASCII))
+                       .putDouble(rnd.nextInt(100_000)).putDouble(rnd.nextInt(50_000));
+                }
+                flush(ch, buf);
+            }
+        } else {
+            try (BufferedWriter w = Files.newBufferedWriter(out, StandardCharsets.US_ASCII)) {
+                w.write("card,pin,savings,current\n");
+                for (long i = 0; i < n; i++) {
+                    w.write(String.format("4%015d,%04d,%d.%02d,%d\n", i, rnd.nextInt(10000),
+                            rnd.nextInt(100_000), rnd.nextInt(100), rnd.nextInt(50_000)));
+                }
+            }
+        }
+    }
+
+    private static void flush(FileChannel ch, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) ch.write(buf);
+        buf.clear();
+    }
+}
+
+/* ---------- Read models (CQRS) ---------- */
+/**
+ * Query-side projections of account state, fed asynchronously from AccountEvents.
+ * Writers only enqueue an event; a single projector thread applies batches to:
+ * - a balance cache per card and account type (with the day's withdrawals)
+ * - per-branch aggregates (branch = first BRANCH_DIGITS digits of the card)
+ * - the set of locked cards
+ * - the top TOP_N cards by today's withdrawals
+ * Queries read these without touching any account monitor. Staleness is bounded by how far the
+ * projector is behind: awaitFresh(bound) waits up to bound ms for it to catch up and returns the
+ * remaining staleness, which callers show; the Swing screens never wait and show staleness() instead.
+ * If the queue ever overflows, or a follower loads a snapshot, projections are rebuilt from the
+ * account model.
+ */
+class ReadModels implements AccountListener {
+    static final int BRANCH_DIGITS = 4;
+    static final int TOP_N = 10;
+    static final int QUEUE_CAPACITY = 1_000_000;
+    static final long DEFAULT_STALENESS_MS = 1000;
+
+    private static volatile ReadModels instance;
+
+    static class AccountView {
+        volatile double balance;
+        volatile double dailyWithdrawn;
+        volatile long version;
+    }
+
+    static class CardView {
+        final String card;
+        final Map<String, AccountView> accounts = new ConcurrentHashMap<>(4);
+        volatile boolean locked;
+        volatile double dailyWithdrawn; // all account types
+
+        CardView(String card) { this.card = card; }
+    }
+
+    static class BranchView {
+        final String branch;
+        volatile long cards;
+        volatile double totalBalance;
+        volatile double dailyWithdrawn;
+        volatile long locked;
+
+        BranchView(String branch) { this.branch = branch; }
+    }
+
+    private final BlockingQueue<AccountEvent> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong published = new AtomicLong();
+    private volatile long applied = 0;
+    private volatile long lastAppliedEventMillis = System.currentTimeMillis();
+    private volatile boolean reseed = false; // events were dropped or state changed without any
+
+    private final Map<String, CardView> cards = new ConcurrentHashMap<>();
+    private final Map<String, BranchView> branches = new ConcurrentHashMap<>();
+    private final Set<String> lockedCards = ConcurrentHashMap.newKeySet();
+    private volatile List<CardView> topWithdrawers = Collections.emptyList();
+
+    // projector-thread state
+    private LocalDate day = LocalDate.now();
+    private final Map<String, CardView> topSet = new HashMap<>();
+
+    public static synchronized ReadModels start() {
+        if (instance != null) return instance;
+        ReadModels rm = new ReadModels();
+        AccountEvents.subscribe(rm); // before seeding: nothing committed from here on is missed
+        rm.seed();
+        Thread t = new Thread(rm::projectLoop, "read-model-projector");
+        t.setDaemon(true);
+        t.start();
+        instance = rm;
+        return rm;
+    }
+
+    static ReadModels get() { return instance; }
+
+    @Override
+    public void onEvent(AccountEvent e) {
+        if (queue.offer(e)) published.incrementAndGet();
+        else reseed = true;
+    }
+
+    // account state was replaced without events (a follower's snapshot): rebuild from the model
+    public void reseed() { reseed = true; }
+
+    /* ---- queries: never take an account monitor ---- */
+
+    public long staleness() {
+        if (applied >= published.get() && !reseed) return 0;
+        return Math.max(0, System.currentTimeMillis() - lastAppliedEventMillis);
+    }
+
+    public long awaitFresh(long boundMs) {
+        long deadline = System.nanoTime() + boundMs * 1_000_000L;
+        long s;
+        while ((s = staleness()) > boundMs && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(1_000_000L);
+        }
+        return s;
+    }
+
+    public AccountView account(String card, String type) {
+        CardView c = cards.get(card);
+        return c == null ? null : c.accounts.get(type);
+    }
+
+    public Collection<CardView> cards() { return cards.values(); }
+    public Collection<BranchView> branches() { return branches.values(); }
+    public Set<String> lockedCards() { return Collections.unmodifiableSet(lockedCards); }
+    public List<CardView> topWithdrawers() { return topWithdrawers; }
+
+    /* ---- projection ---- */
+
+    private void seed() {
+        topSet.clear();
+        for (ATMImplementation impl : LoginScreen.ACCOUNT_MODELS.values()) {
+            CardView c = seedCard(impl);
+            if (c.dailyWithdrawn > 0) offerTop(c);
+        }
+        publishTop();
+    }
+
+    private CardView seedCard(ATMImplementation impl) {
+        CardView c = cards.computeIfAbsent(impl.getCardNumber(), CardView::new);
+        BranchView b = branch(c.card);
+        boolean fresh = c.accounts.isEmpty();
+        for (String t : impl.accountTypes()) {
+            AccountType.State st = impl.getAccount(t).exportState(false);
+            AccountView v = c.accounts.computeIfAbsent(t, k -> new AccountView());
+            if (st.version < v.version) continue;
+            b.totalBalance += st.balance - v.balance;
+            c.dailyWithdrawn += st.dailyWithdrawn - v.dailyWithdrawn;
+            b.dailyWithdrawn += st.dailyWithdrawn - v.dailyWithdrawn;
+            v.balance = st.balance;
+            v.dailyWithdrawn = st.dailyWithdrawn;
+            v.version = st.version;
+        }
+        if (fresh) b.cards++;
+        setLocked(c, b, impl.isLocked());
+        return c;
+    }
+
+    private BranchView branch(String card) {
+        String key = card.length() > BRANCH_DIGITS ? card.substring(0, BRANCH_DIGITS) : card;
+        return branches.computeIfAbsent(key, BranchView::new);
+    }
+
+    private void setLocked(CardView c, BranchView b, boolean locked) {
+        if (c.locked == locked) return;
+        c.locked = locked;
+        b.locked += locked ? 1 : -1;
+        if (locked) lockedCards.add(c.card); else lockedCards.remove(c.card);
+    }
+
+    private void projectLoop() {
+        List<AccountEvent> batch = new ArrayList<>(4096);
+        while (true) {
+            try {
+                AccountEvent first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (reseed) {
+                    // events were dropped, or state changed without them: rebuild from the source of truth. Everything taken off the
+                    // queue before the seed is covered by it and counts as applied; events published
+                    // after the drain stay queued and are counted when they are applied, so applied
+                    // never runs ahead of published and staleness() stays honest
+                    reseed = false;
+                    long discarded = (first == null ? 0 : 1) + batch.size();
+                    batch.clear();
+                    discarded += queue.drainTo(batch);
+                    batch.clear();
+                    long seedStart = System.currentTimeMillis();
+                    seed();
+                    lastAppliedEventMillis = seedStart;
+                    applied += discarded;
+                    continue;
+                }
+                rollDayIfNeeded();
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch, 4095);
+                boolean topChanged = false;
+                for (AccountEvent e : batch) topChanged |= apply(e);
+                if (topChanged) publishTop();
+                lastAppliedEventMillis = batch.get(batch.size() - 1).timeMillis;
+                applied += batch.size();
+                batch.clear();
+            } catch (InterruptedException ex) {
+                return;
+            } catch (RuntimeException ex) {
+                System.err.println("Read model projection failed, reseeding: " + ex);
+                reseed = true;
+            }
+        }
+    }
+
+    // returns true if the top-N list may have changed
+    private boolean apply(AccountEvent e) {
+        if (e.accountType == null) {
+            if (e.op == AccountOp.CREATED) {
+                // from the payload: the card is not registered yet when CREATED is published
+                CardView c = cards.get(e.card);
+                if (c == null) {
+                    c = new CardView(e.card);
+                    cards.put(e.card, c);
+                    branch(e.card).cards++;
+                }
+                BranchView b = branch(e.card);
+                for (Map.Entry<String, Double> a : e.createdBalances().entrySet()) {
+                    AccountView v = c.accounts.computeIfAbsent(a.getKey(), k -> new AccountView());
+                    if (v.version > 0) continue; // a later event got here first
+                    b.totalBalance += a.getValue() - v.balance;
+                    v.balance = a.getValue();
+                }
+            } else if (e.op == AccountOp.LOCKED || e.op == AccountOp.UNLOCKED) {
+                CardView c = cards.get(e.card);
+                if (c != null) setLocked(c, branch(e.card), e.op == AccountOp.LOCKED);
+            }
+            return false;
+        }
+        CardView c = cards.get(e.card);
+        if (c == null) {
+            c = new CardView(e.card);
+            cards.put(e.card, c);
+            branch(e.card).cards++;
+        }
+        AccountView v = c.accounts.computeIfAbsent(e.accountType, k -> new AccountView());
+        if (e.version <= v.version) return false;
+        BranchView b = branch(e.card);
+        b.totalBalance += e.balanceAfter - v.balance;
+        v.balance = e.balanceAfter;
+        v.version = e.version;
+        if (e.op != AccountOp.WITHDRAW) return false;
+        v.dailyWithdrawn += e.amount;
+        c.dailyWithdrawn += e.amount;
+        b.dailyWithdrawn += e.amount;
+        return offerTop(c);
+    }
+
+    // withdrawal totals only grow within a day, so a bounded candidate set is exact
+    private boolean offerTop(CardView c) {
+        if (topSet.containsKey(c.card)) return true;
+        if (topSet.size() < TOP_N) {
+            topSet.put(c.card, c);
+            return true;
+        }
+        CardView min = null;
+        for (CardView t : topSet.values()) if (min == null || t.dailyWithdrawn < min.dailyWithdrawn) min = t;
+        if (c.dailyWithdrawn <= min.dailyWithdrawn) return false;
+        topSet.remove(min.card);
+        topSet.put(c.card, c);
+        return true;
+    }
+
+    private void publishTop() {
+        List<CardView> top = new ArrayList<>(topSet.values());
+        top.sort((a, b) -> Double.compare(b.dailyWithdrawn, a.dailyWithdrawn));
+        topWithdrawers = Collections.unmodifiableList(top);
+    }
+
+    private void rollDayIfNeeded() {
+        LocalDate now = LocalDate.now();
+        if (now.equals(day)) return;
+        day = now;
+        for (CardView c : cards.values()) {
+            c.dailyWithdrawn = 0;
+            for (AccountView v : c.accounts.values()) v.dailyWithdrawn = 0;
+        }
+        for (BranchView b : branches.values()) b.dailyWithdrawn = 0;
+        topSet.clear();
+        publishTop();
+    }
+
+    /* Text dashboard for the admin screen and the control port. */
+    public String dashboard() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Read models: ").append(cards.size()).append(" cards, staleness ").append(staleness()).append(" ms\n");
+        sb.append("Branches:\n");
+        List<BranchView> bs = new ArrayList<>(branches.values());
+        bs.sort(Comparator.comparing(b -> b.branch));
+        for (BranchView b : bs) {
+            sb.append("  ").append(b.branch).append(": ").append(b.cards).append(" cards, ₹")
+              .append(String.format("%.2f", b.totalBalance)).append(" held, ₹")
+              .append(String.format("%.2f", b.dailyWithdrawn)).append(" withdrawn today, ")
+              .append(b.locked).append(" locked\n");
+        }
+        sb.append("Locked cards: ").append(new TreeSet<>(lockedCards)).append("\n");
+        sb.append("Top withdrawers today:\n");
+        for (CardView c : topWithdrawers) {
+            sb.append("  ").append(c.card).append(": ₹").append(String.format("%.2f", c.dailyWithdrawn)).append("\n");
+        }
+        return sb.toString();
+    }
+}
+
+/* ---------- Two-phase transfers ---------- */
+/*
+ * Authentication for the two-phase-commit calls nodes make on each other's control ports.
+ * A signed line ends with "<node> <millis> <mac>": the sender's atm.node name, the time it was
+ * signed and a hex HMAC-SHA256 of everything before the mac, keyed with the shared secret in
+ * ATM_TX_SECRET. Lines signed more than MAX_SKEW_MS away from this node's clock are refused, so a
+ * captured line can only be replayed within that window; within it, LocalParticipant refuses to
+ * prepare a txId it has already decided. PREPARE / COMMIT / ABORT are accepted only from
+ * coordinators configured with --tx-peer; the decision queries participants send back
+ * (TXDECISION, TXVERIFY) need a valid mac only. Without ATM_TX_SECRET every such call is refused.
+ */
+class TxAuth {
+    static final String NODE = System.getProperty("atm.node", "atm");
+    static final long MAX_SKEW_MS = 60_000;
+    private static final String SECRET = System.getenv("ATM_TX_SECRET");
+    private static final Map<String, ControlClient> PEERS = new ConcurrentHashMap<>(); // node -> control port
+    private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> {
+        try {
+            Mac m = Mac.getInstance("HmacSHA256");
+            m.init(new SecretKeySpec(SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return m;
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
+
+    static boolean enabled() { return SECRET != null && !SECRET.isEmpty(); }
+
+    static void addPeer(String node, String hostPort) { PEERS.put(node, ControlClient.of(hostPort)); }
+
+    static ControlClient peer(String node) { return PEERS.get(node); }
+
+    static String sign(String line) {
+        String body = line + " " + NODE + " " + System.currentTimeMillis();
+        return body + " " + mac(body);
+    }
+
+    // the signing node if the mac checks out, the line is fresh and, with peersOnly, the node is a configured peer
+    static String verify(String[] cmd, boolean peersOnly) {
+        if (!enabled() || cmd.length < 4) return null;
+        String body = String.join(" ", Arrays.copyOf(cmd, cmd.length - 1));
+        if (!MessageDigest.isEqual(mac(body).getBytes(StandardCharsets.US_ASCII),
+                cmd[cmd.length - 1].getBytes(StandardCharsets.US_ASCII))) return null;
+        try {
+            if (Math.abs(System.currentTimeMillis() - Long.parseLong(cmd[cmd.length - 2])) > MAX_SKEW_MS) return null;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        String node = cmd[cmd.length - 3];
+        return peersOnly && !PEERS.containsKey(node) ? null : node;
+    }
+
+    private static String mac(String body) {
+        return AuditLog.hex(MAC.get().doFinal(body.getBytes(StandardCharsets.UTF_8)));
+    }
+}
+
+/* Client for another node's control port: one request/response line per call over pooled connections. */
+class ControlClient {
+    private static final int MAX_IDLE = TransferCoordinator.MAX_IN_FLIGHT;
+    private static final int TIMEOUT_MS = 5000;
+
+    private final String host;
+    private final int port;
+    private final BlockingQueue<Socket> idle = new LinkedBlockingQueue<>();
+
+    ControlClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    static ControlClient of(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        return new ControlClient(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1)));
+    }
+
+    // concurrent callers use separate connections
+    String call(String line) throws IOException {
+        Socket s = idle.poll();
+        if (s == null || s.isClosed()) {
+            s = new Socket(host, port);
+            s.setSoTimeout(TIMEOUT_MS);
+            s.setTcpNoDelay(true);
+        }
+        try {
+            OutputStream out = s.getOutputStream();
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String resp = readLine(s.getInputStream());
+            if (resp == null) throw new EOFException(this + " closed the connection");
+            if (idle.size() < MAX_IDLE) idle.offer(s); else s.close();
+            return resp;
+        } catch (IOException ex) {
+            s.close();
+            throw ex;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(32);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') buf.write(b);
+        return b == -1 && buf.size() == 0 ? null : buf.toString("UTF-8").trim();
+    }
+
+    @Override
+    public String toString() { return host + ":" + port; }
+}
+
+/* A node holding some of the accounts in a transfer. */
+interface TransferParticipant {
+    // votes: true = prepared and will commit when told, false = refused; coordinator = deciding node
+    boolean prepareDebit(String txId, String card, String type, double amt, String toCard, String coordinator) throws IOException;
+    boolean prepareCredit(String txId, String card, String type, double amt, String fromCard, String coordinator) throws IOException;
+    // idempotent; false if the participant never prepared the transaction
+    boolean commit(String txId) throws IOException;
+    // idempotent; returns once the release is recorded
+    void abort(String txId) throws IOException;
+}
+
+/*
+ * Participant for the accounts in this JVM; the debit side holds a reservation on the AccountType.
+ * Votes are logged before they are given: PREPARE is forced to participant.log, COMMIT is forced
+ * before the legs are applied, ABORT is appended. On start undecided prepares are replayed, so a
+ * restarted node still honours its yes votes. A prepare left undecided for PREPARE_TIMEOUT_MS asks
+ * its coordinator (TXDECISION) and follows the answer; while the coordinator is unreachable the
+ * reservation stays held, since a participant that voted yes must not decide on its own.
+ * Decided txIds stay in the log for RETAIN_MS and are refused if prepared again, and calls for one
+ * txId are serialized on a lock stripe, so a repeated PREPARE can never reopen a finished transfer.
+ */
+class LocalParticipant implements TransferParticipant {
+    static final long PREPARE_TIMEOUT_MS = Long.getLong("atm.tx.prepareTimeoutMs", 30_000);
+    static final Path LOG = TransferCoordinator.DIR.resolve("participant.log");
+    static final LocalParticipant INSTANCE = new LocalParticipant(LOG);
+    private static final int MAX_FAILURES = 1000;
+    private static final int STRIPES = 64;
+
+    private static class Prepared {
+        final String txId, card, type, counterparty, coordinator;
+        final boolean debit;
+        final double amt;
+        final long preparedMillis;
+        final AccountType acc; // null only for a replayed prepare whose card is gone
+
+        Prepared(String txId, boolean debit, String card, String type, double amt, String counterparty,
+                 String coordinator, long preparedMillis, AccountType acc) {
+            this.txId = txId;
+            this.debit = debit;
+            this.card = card;
+            this.type = type;
+            this.amt = amt;
+            this.counterparty = counterparty;
+            this.coordinator = coordinator;
+            this.preparedMillis = preparedMillis;
+            this.acc = acc;
+        }
+
+        // PREPARE \t txId \t DEBIT|CREDIT \t card \t type \t amt \t counterparty \t coordinator \t millis
+        String record() {
+            return "PREPARE\t" + txId + "\t" + (debit ? "DEBIT" : "CREDIT") + "\t" + card + "\t" + type + "\t" + amt
+                    + "\t" + counterparty + "\t" + coordinator + "\t" + preparedMillis;
+        }
+
+        static Prepared parse(String line) {
+            String[] f = line.split("\t", -1);
+            if (f.length < 9 || !f[0].equals("PREPARE")) return null;
+            try {
+                return new Prepared(f[1], f[2].equals("DEBIT"), f[3], f[4], Double.parseDouble(f[5]), f[6], f[7],
+                        Long.parseLong(f[8]), account(f[3], f[4]));
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return txId + " " + (debit ? "debit " : "credit ") + card + "/" + type + " ₹" + amt;
+        }
+    }
+
+    private final Map<String, Prepared> debits = new ConcurrentHashMap<>();
+    private final Map<String, Prepared> credits = new ConcurrentHashMap<>();
+    private final Deque<String> failures = new ArrayDeque<>(); // promises that could not be kept, for settlement
+    private final LongAdder restored = new LongAdder(), resolved = new LongAdder();
+    private final Object[] stripes = new Object[STRIPES];
+    private final Path logFile;
+    private TxLog log;
+
+    LocalParticipant(Path logFile) {
+        this.logFile = logFile;
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Object();
+    }
+
+    private Object stripe(String txId) { return stripes[(txId.hashCode() & 0x7fffffff) % STRIPES]; }
+
+    private static AccountType account(String card, String type) {
+        ATMImplementation impl = LoginScreen.ACCOUNT_MODELS.get(card);
+        return impl == null ? null : impl.getAccount(type);
+    }
+
+    // replay only if a previous run left prepares behind
+    static void recoverIfNeeded() throws IOException {
+        if (Files.exists(LOG) && Files.size(LOG) > 0) INSTANCE.log();
+    }
+
+    synchronized TxLog log() throws IOException {
+        if (log == null) {
+            Files.createDirectories(logFile.toAbsolutePath().getParent());
+            log = new TxLog(logFile, line -> true, TransferCoordinator.RETAIN_MS, "COMMIT", "ABORT");
+            replay();
+            long period = Math.max(1000, PREPARE_TIMEOUT_MS / 3);
+            ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "tx-prepare-timeout");
+                t.setDaemon(true);
+                return t;
+            });
+            sweeper.scheduleWithFixedDelay(this::resolveStale, period, period, TimeUnit.MILLISECONDS);
+        }
+        return log;
+    }
+
+    private void replay() {
+        for (List<String> records : log.open().values()) {
+            for (String line : records) {
+                Prepared p = Prepared.parse(line);
+                if (p == null) continue;
+                if (p.acc == null || (p.debit && !p.acc.reserve(p.txId, p.amt))) {
+                    fail("UNRESTORED " + p + " (account missing or funds no longer available)");
+                }
+                (p.debit ? debits : credits).put(p.txId, p);
+                restored.increment();
+            }
+        }
+    }
+
+    private void fail(String what) {
+        System.err.println("Transfer participant: " + what);
+        synchronized (failures) {
+            if (failures.size() == MAX_FAILURES) failures.removeFirst();
+            failures.addLast(what);
+        }
+    }
+
+    List<String> failures() {
+        synchronized (failures) { return new ArrayList<>(failures); }
+    }
+
+    @Override
+    public boolean prepareDebit(String txId, String card, String type, double amt, String toCard, String coordinator)
+            throws IOException {
+        synchronized (stripe(txId)) {
+            if (debits.containsKey(txId)) return true;
+            TxLog l = log();
+            if (l.retained(txId) != null) return false; // already decided: a replayed PREPARE
+            AccountType acc = account(card, type);
+            if (acc == null || !acc.reserve(txId, amt)) return false;
+            Prepared p = new Prepared(txId, true, card, type, amt, toCard, coordinator, System.currentTimeMillis(), acc);
+            try {
+                l.sync(l.append(p.record())); // the vote is durable before it is given
+            } catch (IOException ex) {
+                acc.releaseReservation(txId);
+                throw ex;
+            }
+            debits.put(txId, p);
+            return true;
+        }
+    }
+
+    @Override
+    public boolean prepareCredit(String txId, String card, String type, double amt, String fromCard, String coordinator)
+            throws IOException {
+        synchronized (stripe(txId)) {
+            if (credits.containsKey(txId)) return true;
+            TxLog l = log();
+            if (l.retained(txId) != null) return false;
+            AccountType acc = account(card, type);
+            if (acc == null || !AccountType.validAmount(amt) || ReplicationNode.isReadOnly()) return false;
+            Prepared p = new Prepared(txId, false, card, type, amt, fromCard, coordinator, System.currentTimeMillis(), acc);
+            l.sync(l.append(p.record()));
+            credits.put(txId, p);
+            return true;
+        }
+    }
+
+    @Override
+    public boolean commit(String txId) throws IOException {
+        synchronized (stripe(txId)) {
+            TxLog l = log();
+            Prepared d = debits.get(txId), c = credits.get(txId);
+            if (d == null && c == null) {
+                String decided = l.retained(txId);
+                return decided != null && decided.startsWith("COMMIT\t");
+            }
+            l.sync(l.append("COMMIT\t" + txId + "\t" + System.currentTimeMillis())); // a restart must not replay applied legs
+            debits.remove(txId);
+            credits.remove(txId);
+            // a leg whose other half was not prepared here moved money to or from another shard
+            if (d != null) applyDebit(d, c == null);
+            if (c != null) applyCredit(c, d == null);
+            return true;
+        }
+    }
+
+    private void applyDebit(Prepared d, boolean crossShard) {
+        if (d.acc == null) {
+            fail("UNAPPLIED " + d + " (account missing)");
+            return;
+        }
+        synchronized (d.acc) {
+            if (!d.acc.commitReservation(d.txId)) {
+                fail("UNAPPLIED " + d + " (no reservation held)");
+                return;
+            }
+            TransferJournal.record(d.acc.controlDay(), new TransferJournal.Leg(d.txId, true, d.card, d.type, d.amt,
+                    d.counterparty, d.coordinator, crossShard, d.acc.version()));
+        }
+        d.acc.addHistory("Transferred ₹" + d.amt + " to " + d.counterparty);
+    }
+
+    private void applyCredit(Prepared c, boolean crossShard) {
+        if (c.acc == null) {
+            fail("UNAPPLIED " + c + " (account missing)");
+            return;
+        }
+        synchronized (c.acc) {
+            c.acc.receiveTransfer(c.amt, c.counterparty);
+            TransferJournal.record(c.acc.controlDay(), new TransferJournal.Leg(c.txId, false, c.card, c.type, c.amt,
+                    c.counterparty, c.coordinator, crossShard, c.acc.version()));
+        }
+        c.acc.addHistory("Received ₹" + c.amt + " from " + c.counterparty);
+    }
+
+    @Override
+    public void abort(String txId) throws IOException {
+        synchronized (stripe(txId)) {
+            TxLog l = log();
+            Prepared d = debits.remove(txId);
+            Prepared c = credits.remove(txId);
+            if (d == null && c == null && l.retained(txId) != null) return;
+            if (d != null && d.acc != null) d.acc.releaseReservation(txId);
+            // recorded even with nothing prepared, so a PREPARE arriving after its ABORT is refused;
+            // presumed abort: if this is lost, the replayed prepare asks again
+            l.append("ABORT\t" + txId + "\t" + System.currentTimeMillis());
+        }
+    }
+
+    // prepares older than PREPARE_TIMEOUT_MS ask their coordinator how the transaction ended
+    private void resolveStale() {
+        long cutoff = System.currentTimeMillis() - PREPARE_TIMEOUT_MS;
+        Map<String, String> stale = new HashMap<>(); // txId -> coordinator
+        for (Prepared p : debits.values()) if (p.preparedMillis < cutoff) stale.put(p.txId, p.coordinator);
+        for (Prepared p : credits.values()) if (p.preparedMillis < cutoff) stale.put(p.txId, p.coordinator);
+        for (Map.Entry<String, String> e : stale.entrySet()) {
+            try {
+                String decision = TransferCoordinator.decisionOf(e.getValue(), e.getKey());
+                if (decision.equals("COMMIT")) {
+                    commit(e.getKey());
+                } else if (decision.equals("ABORT") || decision.equals("UNKNOWN")) {
+                    abort(e.getKey());
+                } else {
+                    continue; // PENDING: the coordinator is still collecting votes
+                }
+                resolved.increment();
+            } catch (IOException ex) {
+                // coordinator unreachable: keep holding and ask again next round
+            }
+        }
+    }
+
+    int pending() { return debits.size() + credits.size(); }
+
+    String status() {
+        return "prepared=" + pending() + " restored=" + restored.sum() + " resolvedByTimeout=" + resolved.sum()
+                + " failures=" + failures().size();
+    }
+}
+
+/* Participant on another node, reached through its control port with signed PREPARE / COMMIT / ABORT. */
+class RemoteParticipant implements TransferParticipant {
+    private final ControlClient node;
+
+    RemoteParticipant(ControlClient node) {
+        this.node = node;
+    }
+
+    // any reply outside the expected ones (ERR unauthorized, ERR <io>) is a failed call, retried or aborted
+    private String call(String line, String... expected) throws IOException {
+        String resp = node.call(TxAuth.sign(line));
+        for (String e : expected) if (resp.equals(e)) return resp;
+        throw new IOException(node + ": " + resp);
+    }
+
+    @Override
+    public boolean prepareDebit(String txId, String card, String type, double amt, String toCard, String coordinator)
+            throws IOException {
+        return call("PREPARE " + txId + " DEBIT " + card + " " + type + " " + amt + " " + toCard, "OK", "NO").equals("OK");
+    }
+
+    @Override
+    public boolean prepareCredit(String txId, String card, String type, double amt, String fromCard, String coordinator)
+            throws IOException {
+        return call("PREPARE " + txId + " CREDIT " + card + " " + type + " " + amt + " " + fromCard, "OK", "NO").equals("OK");
+    }
+
+    @Override
+    public boolean commit(String txId) throws IOException {
+        return call("COMMIT " + txId, "OK", "UNKNOWN").equals("OK");
+    }
+
+    @Override
+    public void abort(String txId) throws IOException {
+        call("ABORT " + txId, "OK");
+    }
+}
+
+/*
+ * Append-only transaction log with group commit and online compaction. Records are
+ * KIND \t txId \t ...; sync() forces everything appended so far, so concurrent transactions share
+ * one fsync. The log keeps in memory the records of every transaction not yet closed by one of the
+ * `closing` kinds; once the file has grown COMPACT_BYTES past its last rewrite it is rewritten with
+ * just those, plus the closed transactions' records matching `retain` that are younger than retainMs
+ * (third field is the record's millis), forced, and renamed over the old file.
+ */
+class TxLog {
+    static final long COMPACT_BYTES = 4L << 20;
+
+    private final Path file;
+    private final Set<String> closing;
+    private final String close; // written after a retained record that does not itself close
+    private final Predicate<String> retain;
+    private final long retainMs;
+    private final Map<String, List<String>> live = new LinkedHashMap<>();
+    private final Map<String, String> retained = new LinkedHashMap<>();
+    private final Object syncLock = new Object();
+    private FileChannel ch;
+    private long written = 0, size = 0, compactedSize = 0;
+    private volatile long durable = 0;
+
+    TxLog(Path file, Predicate<String> retain, long retainMs, String... closing) throws IOException {
+        this.file = file;
+        this.retain = retain;
+        this.retainMs = retainMs;
+        this.closing = new HashSet<>(Arrays.asList(closing));
+        this.close = closing[0];
+        if (Files.exists(file)) {
+            try (BufferedReader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = r.readLine()) != null) track(line);
+            }
+        }
+        rewrite();
+    }
+
+    private void track(String line) {
+        int a = line.indexOf('\t');
+        if (a < 0) return; // torn last line
+        int b = line.indexOf('\t', a + 1);
+        String kind = line.substring(0, a), txId = b < 0 ? line.substring(a + 1) : line.substring(a + 1, b);
+        if (!closing.contains(kind)) {
+            live.computeIfAbsent(txId, k -> new ArrayList<>(4)).add(line);
+            return;
+        }
+        List<String> records = live.remove(txId);
+        if (retain.test(line)) retained.put(txId, line);
+        else if (records != null) for (String r : records) if (retain.test(r)) retained.put(txId, r);
+    }
+
+    // open transactions' records in log order
+    synchronized Map<String, List<String>> open() {
+        Map<String, List<String>> copy = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> e : live.entrySet()) copy.put(e.getKey(), new ArrayList<>(e.getValue()));
+        return copy;
+    }
+
+    synchronized List<String> records(String txId) {
+        List<String> r = live.get(txId);
+        return r == null ? null : new ArrayList<>(r);
+    }
+
+    // the retained record of a closed transaction, or null
+    synchronized String retained(String txId) { return retained.get(txId); }
+
+    long append(String line) throws IOException {
+        long n;
+        boolean compact;
+        synchronized (this) {
+            byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            while (buf.hasRemaining()) ch.write(buf);
+            size += bytes.length;
+            track(line);
+            n = ++written;
+            compact = size - compactedSize >= COMPACT_BYTES;
+        }
+        if (compact) compact();
+        return n;
+    }
+
+    void sync(long upTo) throws IOException {
+        synchronized (syncLock) {
+            if (durable >= upTo) return;
+            long target;
+            FileChannel c;
+            synchronized (this) {
+                target = written;
+                c = ch;
+            }
+            c.force(false);
+            durable = target;
+        }
+    }
+
+    // under syncLock, so no sync() is forcing the channel being replaced
+    private void compact() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (size - compactedSize < COMPACT_BYTES) return;
+                rewrite();
+                durable = written;
+            }
+        }
+    }
+
+    private void rewrite() throws IOException {
+        long cutoff = System.currentTimeMillis() - retainMs;
+        retained.values().removeIf(line -> millis(line) < cutoff);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> e : retained.entrySet()) {
+                String line = e.getValue();
+                w.write(line + "\n");
+                if (!closing.contains(line.substring(0, line.indexOf('\t')))) w.write(close + "\t" + e.getKey() + "\n");
+            }
+            for (List<String> records : live.values()) for (String line : records) w.write(line + "\n");
+        }
+        try (FileChannel c = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            c.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (ch != null) ch.close();
+        ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = compactedSize = ch.size();
+    }
+
+    private static long millis(String line) {
+        String[] f = line.split("\t", 4);
+        try {
+            return f.length > 2 ? Long.parseLong(f[2]) : 0;
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+}
+
+/**
+ * Two-phase-commit coordinator for transfers between accounts on any shard (this JVM or other nodes).
+ * - BEGIN is logged and forced, then the source reserves (prepareDebit) and the target agrees (prepareCredit)
+ * - any refusal or unreachable participant: ABORT (presumed abort, no force), then both release
+ * - both yes: COMMIT is forced to the log (the decision point), then both commit
+ * - a commit or abort that cannot be delivered is retried in the background, backing off up to a
+ *   minute, until the participant acknowledges; only then does END close the entry
+ * - on start, the log is replayed: decided transactions are re-committed, undecided ones aborted
+ * - participants holding a prepare past their timeout ask TXDECISION; no record means abort
+ * The log compacts itself as entries END, keeping the COMMIT records of cross-shard transfers for
+ * RETAIN_MS so settlement on any node can confirm its cross-shard legs by txId (TXVERIFY). Up to MAX_IN_FLIGHT transfers run
+ * concurrently and share fsyncs (group commit).
+ */
+class TransferCoordinator {
+    enum Outcome { COMMITTED, COMMIT_PENDING, ABORTED }
+
+    static final int MAX_IN_FLIGHT = 64;
+    static final long RETRY_MS = 1000;
+    static final long RETAIN_MS = 3 * 86_400_000L;
+    private static final int VERIFY_BATCH = 100;
+    private static final int MAX_LOST_LISTED = 1000;
+    static final Path DIR = Paths.get(System.getProperty("atm.txlog.dir",
+            System.getProperty("user.home") + File.separator + "ATMTransfers"));
+    static final Path LOG = DIR.resolve("coordinator.log");
+
+    private static final Map<String, TransferParticipant> SHARDS = new ConcurrentHashMap<>(); // card prefix -> node
+    private static TransferCoordinator instance;
+
+    /* A decision still to be acknowledged by both participants. */
+    private static final class Delivery {
+        final String txId, fromCard, toCard;
+        final double amt;
+        final boolean commit;
+        final long logged; // append sequence of a COMMIT that must be forced before delivery, else 0
+        final long sinceMillis = System.currentTimeMillis();
+
+        Delivery(String txId, boolean commit, String fromCard, String toCard, double amt) {
+            this(txId, commit, fromCard, toCard, amt, 0);
+        }
+
+        Delivery(String txId, boolean commit, String fromCard, String toCard, double amt, long logged) {
+            this.logged = logged;
+            this.txId = txId;
+            this.commit = commit;
+            this.fromCard = fromCard;
+            this.toCard = toCard;
+            this.amt = amt;
+        }
+
+        @Override
+        public String toString() {
+            return txId + " " + fromCard + " -> " + toCard + " ₹" + amt + " since " + Instant.ofEpochMilli(sinceMillis);
+        }
+    }
+
+    private final TxLog log;
+    private final String name = TxAuth.NODE + "-" + Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong seq = new AtomicLong();
+    private final ThreadPoolExecutor pool;
+    private final ScheduledExecutorService retrier = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "tx-retry");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Map<String, Delivery> undelivered = new ConcurrentHashMap<>();
+    private final Set<String> inDoubt = ConcurrentHashMap.newKeySet(); // COMMIT appended, not yet forced
+    private final Deque<String> lostTx = new ArrayDeque<>();
+    private final LongAdder committed = new LongAdder(), aborted = new LongAdder(), lost = new LongAdder(),
+            latencyNanos = new LongAdder();
+    // finished transfers per second, ring indexed by epoch second, for a recent throughput figure
+    private static final int RATE_WINDOW_S = 10;
+    private final AtomicLongArray perSecond = new AtomicLongArray(RATE_WINDOW_S + 2);
+    private final AtomicLongArray perSecondStamp = new AtomicLongArray(RATE_WINDOW_S + 2);
+
+    static void addShard(String prefix, String hostPort) {
+        if (!TxAuth.enabled()) throw new IllegalStateException("--shard needs ATM_TX_SECRET shared with that node");
+        SHARDS.put(prefix, new RemoteParticipant(ControlClient.of(hostPort)));
+    }
+
+    // local cards first, then the longest matching shard prefix
+    static TransferParticipant participantFor(String card) {
+        if (LoginScreen.ACCOUNT_MODELS.containsKey(card)) return LocalParticipant.INSTANCE;
+        TransferParticipant best = null;
+        int bestLen = -1;
+        for (Map.Entry<String, TransferParticipant> e : SHARDS.entrySet()) {
+            if (card.startsWith(e.getKey()) && e.getKey().length() > bestLen) {
+                best = e.getValue();
+                bestLen = e.getKey().length();
+            }
+        }
+        return best;
+    }
+
+    public static synchronized TransferCoordinator get() throws IOException {
+        if (instance == null) instance = new TransferCoordinator();
+        return instance;
+    }
+
+    // null when this node has never coordinated a transfer
+    static synchronized TransferCoordinator existing() { return instance; }
+
+    // start (and recover) only if a previous run left a log behind
+    static void recoverIfNeeded() throws IOException {
+        if (Files.exists(LOG) && Files.size(LOG) > 0) get();
+    }
+
+    private TransferCoordinator() throws IOException {
+        Files.createDirectories(DIR);
+        // only commits with a leg on another shard are ever confirmed by txId
+        log = new TxLog(LOG, line -> line.startsWith("COMMIT\t") && line.endsWith("\tshard"), RETAIN_MS, "END");
+        pool = new ThreadPoolExecutor(MAX_IN_FLIGHT, MAX_IN_FLIGHT, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_IN_FLIGHT * 16), r -> {
+                    Thread t = new Thread(r, "tx-worker");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.CallerRunsPolicy()); // back-pressure on submitters
+        for (Map.Entry<String, List<String>> e : log.open().entrySet()) recover(e.getKey(), e.getValue());
+    }
+
+    private void recover(String txId, List<String> records) throws IOException {
+        String[] begin = null;
+        boolean commit = false, abort = false;
+        for (String line : records) {
+            String[] f = line.split("\t", -1);
+            if (f[0].equals("BEGIN") && f.length >= 7) begin = f;
+            else if (f[0].equals("COMMIT")) commit = true;
+            else if (f[0].equals("ABORT")) abort = true;
+        }
+        if (begin == null) {
+            log.append("END\t" + txId); // torn BEGIN: no participant was ever asked
+            return;
+        }
+        if (!commit) {
+            if (!abort) log.append("ABORT\t" + txId);
+            aborted.increment();
+        }
+        deliver(new Delivery(txId, commit, begin[2], begin[4], Double.parseDouble(begin[6])));
+    }
+
+    public CompletableFuture<Outcome> submit(String fromCard, String fromType, String toCard, String toType, double amt) {
+        return CompletableFuture.supplyAsync(() -> transfer(fromCard, fromType, toCard, toType, amt), pool);
+    }
+
+    public Outcome transfer(String fromCard, String fromType, String toCard, String toType, double amt) {
+        long t0 = System.nanoTime();
+        String txId = name + "-" + seq.incrementAndGet();
+        TransferParticipant src = participantFor(fromCard), dst = participantFor(toCard);
+        if (src == null || dst == null || !AccountType.validAmount(amt)) {
+            aborted.increment();
+            return Outcome.ABORTED;
+        }
+        try {
+            log.sync(log.append("BEGIN\t" + txId + "\t" + fromCard + "\t" + fromType + "\t" + toCard + "\t" + toType + "\t" + amt));
+            boolean yes;
+            try {
+                yes = src.prepareDebit(txId, fromCard, fromType, amt, toCard, TxAuth.NODE)
+                        && dst.prepareCredit(txId, toCard, toType, amt, fromCard, TxAuth.NODE);
+            } catch (IOException ex) {
+                yes = false;
+            }
+            if (!yes) {
+                log.append("ABORT\t" + txId);
+                aborted.increment();
+                deliver(new Delivery(txId, false, fromCard, toCard, amt));
+                return Outcome.ABORTED;
+            }
+            boolean shard = src != LocalParticipant.INSTANCE || dst != LocalParticipant.INSTANCE;
+            long logged;
+            inDoubt.add(txId);
+            try {
+                logged = log.append("COMMIT\t" + txId + "\t" + System.currentTimeMillis() + (shard ? "\tshard" : "\tlocal"));
+            } catch (IOException ex) {
+                inDoubt.remove(txId); // never reached the log
+                throw ex;
+            }
+            // the decision is COMMIT from here on; a failed force leaves it in doubt and delivery retries it
+            return deliver(new Delivery(txId, true, fromCard, toCard, amt, logged)) ? Outcome.COMMITTED : Outcome.COMMIT_PENDING;
+        } catch (IOException ex) {
+            // the log itself failed before a decision was recorded: presumed abort, recorded if the log allows
+            try { log.append("ABORT\t" + txId); } catch (IOException ignored) {
+                // without BEGIN or COMMIT in the log, TXDECISION answers UNKNOWN, which is also abort
+            }
+            aborted.increment();
+            deliver(new Delivery(txId, false, fromCard, toCard, amt));
+            return Outcome.ABORTED;
+        } finally {
+            latencyNanos.add(System.nanoTime() - t0);
+            tick();
+        }
+    }
+
+    private void tick() {
+        long sec = System.currentTimeMillis() / 1000;
+        int i = (int) (sec % perSecond.length());
+        long stamp = perSecondStamp.get(i);
+        if (stamp != sec && perSecondStamp.compareAndSet(i, stamp, sec)) perSecond.set(i, 0);
+        perSecond.incrementAndGet(i);
+    }
+
+    // transfers per second over the last RATE_WINDOW_S complete seconds
+    private double recentTps() {
+        long now = System.currentTimeMillis() / 1000, sum = 0;
+        for (long sec = now - RATE_WINDOW_S; sec < now; sec++) {
+            int i = (int) (sec % perSecond.length());
+            if (perSecondStamp.get(i) == sec) sum += perSecond.get(i);
+        }
+        return sum / (double) RATE_WINDOW_S;
+    }
+
+    // pipelines n transfers through submit() and reports the achieved rate
+    public String bench(int n, String fromCard, String fromType, String toCard, String toType, double amt) {
+        long t0 = System.nanoTime();
+        List<CompletableFuture<Outcome>> futures = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) futures.add(submit(fromCard, fromType, toCard, toType, amt));
+        Map<Outcome, Integer> outcomes = new EnumMap<>(Outcome.class);
+        for (CompletableFuture<Outcome> f : futures) outcomes.merge(f.join(), 1, Integer::sum);
+        double secs = (System.nanoTime() - t0) / 1e9;
+        return n + " transfers in " + String.format("%.2f s = %.0f/s ", secs, n / secs) + outcomes;
+    }
+
+    // first attempt inline, then in the background; true if both participants acknowledged now
+    private boolean deliver(Delivery d) {
+        if (deliverNow(d)) return true;
+        undelivered.put(d.txId, d);
+        retrier.schedule(() -> retry(d, 1), RETRY_MS, TimeUnit.MILLISECONDS);
+        return false;
+    }
+
+    // routes again each attempt, since shards may be added
+    private void retry(Delivery d, int attempt) {
+        if (deliverNow(d)) {
+            undelivered.remove(d.txId);
+            return;
+        }
+        long delay = Math.min(60_000, RETRY_MS << Math.min(attempt, 6));
+        retrier.schedule(() -> retry(d, attempt + 1), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean deliverNow(Delivery d) {
+        if (d.logged > 0 && inDoubt.contains(d.txId)) {
+            try {
+                log.sync(d.logged); // no participant hears of a commit before it is durable
+            } catch (IOException ex) {
+                return false;
+            }
+            inDoubt.remove(d.txId);
+        }
+        TransferParticipant src = participantFor(d.fromCard), dst = participantFor(d.toCard);
+        if (src == null || dst == null) return false;
+        try {
+            if (d.commit) {
+                boolean a = src.commit(d.txId);
+                boolean b = dst == src || dst.commit(d.txId);
+                if (!a || !b) lost(d);
+                committed.increment();
+            } else {
+                src.abort(d.txId);
+                if (dst != src) dst.abort(d.txId);
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+        try { log.append("END\t" + d.txId); } catch (IOException ignored) {
+            // END is only a hint: redelivering a decision is idempotent
+        }
+        return true;
+    }
+
+    private void lost(Delivery d) {
+        lost.increment();
+        System.err.println("Transfer " + d.txId + ": participant never prepared the transaction");
+        synchronized (lostTx) {
+            if (lostTx.size() == MAX_LOST_LISTED) lostTx.removeFirst();
+            lostTx.addLast(d.toString());
+        }
+    }
+
+    // COMMIT / ABORT once decided, PENDING while collecting votes or forcing COMMIT, UNKNOWN without a record (presumed abort)
+    String decision(String txId) {
+        if (inDoubt.contains(txId)) return "PENDING";
+        List<String> records = log.records(txId);
+        if (records == null) return log.retained(txId) != null ? "COMMIT" : "UNKNOWN";
+        for (String line : records) {
+            if (line.startsWith("COMMIT\t")) return "COMMIT";
+            if (line.startsWith("ABORT\t")) return "ABORT";
+        }
+        return "PENDING";
+    }
+
+    // the decision on txId from the node that coordinated it
+    static String decisionOf(String coordinator, String txId) throws IOException {
+        if (coordinator.equals(TxAuth.NODE)) {
+            TransferCoordinator c = existing();
+            return c == null ? "UNKNOWN" : c.decision(txId);
+        }
+        ControlClient peer = TxAuth.peer(coordinator);
+        if (peer == null) throw new IOException("no --tx-peer for coordinator " + coordinator);
+        String resp = peer.call(TxAuth.sign("TXDECISION " + txId));
+        if (resp.equals("COMMIT") || resp.equals("ABORT") || resp.equals("PENDING") || resp.equals("UNKNOWN")) return resp;
+        throw new IOException(peer + ": " + resp);
+    }
+
+    // the txIds the coordinating node has no commit for
+    static Set<String> unconfirmed(String coordinator, List<String> txIds) throws IOException {
+        Set<String> out = new HashSet<>();
+        if (coordinator.equals(TxAuth.NODE)) {
+            TransferCoordinator c = existing();
+            for (String id : txIds) if (c == null || !c.decision(id).equals("COMMIT")) out.add(id);
+            return out;
+        }
+        ControlClient peer = TxAuth.peer(coordinator);
+        if (peer == null) throw new IOException("no --tx-peer for coordinator " + coordinator);
+        for (int i = 0; i < txIds.size(); i += VERIFY_BATCH) {
+            String resp = peer.call(TxAuth.sign("TXVERIFY " + String.join(",", txIds.subList(i, Math.min(txIds.size(), i + VERIFY_BATCH)))));
+            if (!resp.startsWith("OK ")) throw new IOException(peer + ": " + resp);
+            if (!resp.equals("OK -")) out.addAll(Arrays.asList(resp.substring(3).split(",")));
+        }
+        return out;
+    }
+
+    // commits not acknowledged within graceMs of the decision, and commits a participant never prepared
+    List<String> undelivered(long graceMs) {
+        long cutoff = System.currentTimeMillis() - graceMs;
+        List<String> out = new ArrayList<>();
+        for (Delivery d : undelivered.values()) if (d.commit && d.sinceMillis < cutoff) out.add("UNDELIVERED " + d);
+        synchronized (lostTx) {
+            for (String s : lostTx) out.add("LOST " + s);
+        }
+        return out;
+    }
+
+    public String status() {
+        long done = committed.sum() + aborted.sum(), commits = 0, aborts = 0;
+        for (Delivery d : undelivered.values()) if (d.commit) commits++; else aborts++;
+        return "committed=" + committed.sum() + " aborted=" + aborted.sum() + " pending=" + commits + " aborting=" + aborts
+                + " lost=" + lost.sum() + " inFlight=" + pool.getActiveCount() + " queued=" + pool.getQueue().size()
+                + String.format(" tps(%ds)=%.1f avgMs=%.2f", RATE_WINDOW_S, recentTps(),
+                        done == 0 ? 0 : latencyNanos.sum() / 1e6 / done)
+                + " | participant " + LocalParticipant.INSTANCE.status();
+    }
+}
+
+/*
+ * Crash-recovery check for the transfer participant (--selftest), run against two throwaway cards and
+ * a participant log in a temporary directory. A crash is modelled by reloading both cards from their
+ * cold-tier encoding, which carries no reservations, and opening a fresh participant on the same log.
+ * - crash after PREPARE: replay restores the hold, the redelivered COMMIT moves the money once
+ * - crash after COMMIT: nothing is restored, a redelivered COMMIT and a replayed PREPARE change nothing
+ * - crash after PREPARE, then ABORT: the hold is released and the balance untouched
+ * - ABORT before PREPARE: the late PREPARE is refused
+ * Every step checks that the two balances still add up to what they started with.
+ */
+final class TransferSelfTest {
+    private static final String A = "99999901", B = "99999902", TYPE = "Savings", COORD = "selftest";
+
+    private final List<String> failures = new ArrayList<>();
+    private final Path logFile;
+    private double total;
+
+    private TransferSelfTest(Path logFile) {
+        this.logFile = logFile;
+    }
+
+    // "PASS ..." or "FAIL ..." with one line per failed check
+    static String run() throws IOException {
+        Path dir = Files.createTempDirectory("atm-selftest");
+        TransferSelfTest t = new TransferSelfTest(dir.resolve("participant.log"));
+        LoginScreen.ACCOUNT_MODELS.put(A, new ATMImplementation(A, "1111"));
+        LoginScreen.ACCOUNT_MODELS.put(B, new ATMImplementation(B, "2222"));
+        t.total = t.balance(A) + t.balance(B);
+        t.scenarios();
+        if (t.failures.isEmpty()) return "PASS transfer recovery (4 scenarios, total ₹" + t.total + " conserved)";
+        return "FAIL transfer recovery\n  " + String.join("\n  ", t.failures);
+    }
+
+    private void scenarios() throws IOException {
+        double a = balance(A), b = balance(B);
+
+        LocalParticipant p = new LocalParticipant(logFile);
+        prepare(p, "st-1", 100);
+        p = crash();
+        check(p.pending() == 2, "crash after PREPARE: " + p.pending() + " legs restored, expected 2");
+        check(p.commit("st-1"), "crash after PREPARE: COMMIT refused");
+        expect("crash after PREPARE", a - 100, b + 100);
+
+        prepare(p, "st-2", 50);
+        check(p.commit("st-2"), "crash after COMMIT: COMMIT refused");
+        p = crash();
+        check(p.pending() == 0, "crash after COMMIT: " + p.pending() + " legs restored, expected 0");
+        check(p.commit("st-2"), "crash after COMMIT: redelivered COMMIT not acknowledged");
+        check(!p.prepareDebit("st-2", A, TYPE, 50, B, COORD), "crash after COMMIT: replayed PREPARE accepted");
+        expect("crash after COMMIT", a - 150, b + 150);
+
+        prepare(p, "st-3", 25);
+        p = crash();
+        p.abort("st-3");
+        check(!account(A).hasReservations(), "crash after PREPARE, ABORT: hold not released");
+        expect("crash after PREPARE, ABORT", a - 150, b + 150);
+
+        p.abort("st-4");
+        check(!p.prepareDebit("st-4", A, TYPE, 10, B, COORD), "ABORT before PREPARE: late PREPARE accepted");
+        expect("ABORT before PREPARE", a - 150, b + 150);
+    }
+
+    private void prepare(LocalParticipant p, String txId, double amt) throws IOException {
+        check(p.prepareDebit(txId, A, TYPE, amt, B, COORD), txId + ": debit vote refused");
+        check(p.prepareCredit(txId, B, TYPE, amt, A, COORD), txId + ": credit vote refused");
+    }
+
+    // what survives a crash: each card's durable encoding and the participant log
+    private LocalParticipant crash() throws IOException {
+        for (String card : new String[] {A, B}) {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+            try (DataOutputStream out = new DataOutputStream(buf)) {
+                LoginScreen.ACCOUNT_MODELS.get(card).writeTo(out);
+            }
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf.toByteArray()))) {
+                LoginScreen.ACCOUNT_MODELS.put(card, ATMImplementation.readFrom(in));
+            }
+        }
+        LocalParticipant p = new LocalParticipant(logFile);
+        p.log(); // replay
+        return p;
+    }
+
+    private void expect(String step, double a, double b) {
+        double gotA = balance(A), gotB = balance(B);
+        check(gotA == a && gotB == b, step + ": balances " + gotA + "/" + gotB + ", expected " + a + "/" + b);
+        check(gotA + gotB == total, step + ": total " + (gotA + gotB) + ", expected " + total);
+    }
+
+    private void check(boolean ok, String what) {
+        if (!ok) failures.add(what);
+    }
+
+    private static AccountType account(String card) { return LoginScreen.ACCOUNT_MODELS.get(card).getAccount(TYPE); }
+
+    private double balance(String card) { return account(card).getBalance(); }
+}
+
+/* ---------- Headless hot path ---------- */
+/**
+ * Allocation-free deposit / withdraw / transfer-out for headless drivers (control port, load tools).
+ * Every command carries the card's PIN and is checked like a GUI login: locked cards are refused and
+ * wrong PINs count towards the lockout.
+ * - Command and Result are mutable and pooled per thread: fill command(), call execute(), read the
+ *   Result before the thread's next execute()
+ * - amounts are parsed from the caller's characters (parseAmount) and results are rendered into a
+ *   caller-supplied StringBuilder, so neither side builds a String
+ * - the account commits into its primitive-encoded AccountType.History; the day check and
+ *   timestamps use cached values
+ * With no AccountEvents listener subscribed an operation allocates nothing in steady state apart
+ * from history growth (one chunk per 256 entries, ~24 bytes an entry). Listeners (replication,
+ * read models) receive an event object and a rendered line per operation.
+ */
+final class HotPath {
+    enum Status { OK, NO_ACCOUNT, INVALID_AMOUNT, REJECTED, READ_ONLY, LOCKED, BAD_PIN }
+
+    private static final String[] REASONS = {"", "no such account", "invalid amount", "rejected", "read-only follower",
+            "card locked", "invalid pin"};
+
+    static final class Command {
+        AccountOp op;
+        String card, pin, type;
+        double amount;
+
+        Command set(AccountOp op, String card, String pin, String type, double amount) {
+            this.op = op;
+            this.card = card;
+            this.pin = pin;
+            this.type = type;
+            this.amount = amount;
+            return this;
+        }
+    }
+
+    static final class Result {
+        Status status;
+        double balance;
+
+        boolean ok() { return status == Status.OK; }
+
+        private Result set(Status status, double balance) {
+            this.status = status;
+            this.balance = balance;
+            return this;
+        }
+
+        // "OK 1234.50" or "ERR <reason>", the same text the control port always answered
+        StringBuilder appendTo(StringBuilder sb) {
+            if (status != Status.OK) return sb.append("ERR ").append(REASONS[status.ordinal()]);
+            return appendMoney(sb.append("OK "), balance);
+        }
+    }
+
+    private static final ThreadLocal<Command> COMMAND = ThreadLocal.withInitial(Command::new);
+    private static final ThreadLocal<Result> RESULT = ThreadLocal.withInitial(Result::new);
+
+    static Command command() { return COMMAND.get(); }
+
+    static Result execute(Command c) {
+        Result r = RESULT.get();
+        ATMImplementation impl = c.card == null ? null : LoginScreen.ACCOUNT_MODELS.get(c.card);
+        AccountType acc = impl == null || c.type == null ? null : impl.getAccount(c.type);
+        if (acc == null) return r.set(Status.NO_ACCOUNT, 0);
+        // same rules as the GUI login: a locked card is refused, a wrong PIN counts towards the lockout
+        if (impl.isLocked()) return r.set(Status.LOCKED, 0);
+        if (c.pin == null || !impl.checkPin(c.pin)) return r.set(impl.isLocked() ? Status.LOCKED : Status.BAD_PIN, 0);
+        if (!AccountType.validAmount(c.amount)) return r.set(Status.INVALID_AMOUNT, 0);
+        if (ReplicationNode.isReadOnly()) return r.set(Status.READ_ONLY, 0);
+        boolean ok;
+        switch (c.op) {
+            case DEPOSIT: ok = acc.deposit(c.amount); break;
+            case WITHDRAW: ok = acc.withdraw(c.amount); break;
+            case TRANSFER_OUT: ok = acc.transferOut(c.amount); break;
+            default: ok = false; break;
+        }
+        return r.set(ok ? Status.OK : Status.REJECTED, acc.getBalance());
+    }
+
+    // plain "123" / "123.45" without a String; anything else goes through Double.parseDouble
+    static double parseAmount(CharSequence s, int from, int to) {
+        long unscaled = 0, scale = 1;
+        boolean dot = false;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == '.' && !dot) {
+                dot = true;
+            } else if (c >= '0' && c <= '9' && unscaled < 100_000_000_000_000L) {
+                unscaled = unscaled * 10 + (c - '0');
+                if (dot) scale *= 10;
+            } else {
+                try {
+                    double v = Double.parseDouble(s.subSequence(from, to).toString());
+                    return Double.isFinite(v) ? v : -1;
+                } catch (NumberFormatException ex) {
+                    return -1;
+                }
+            }
+        }
+        // one division of two exact values rounds the same way Double.parseDouble does
+        return to > from ? unscaled / (double) scale : -1;
+    }
+
+    static StringBuilder appendMoney(StringBuilder sb, double v) {
+        if (!(Math.abs(v) < 1e15)) return sb.append(String.format("%.2f", v)); // beyond exact cents in a long
+        long cents = Math.round(Math.abs(v) * 100);
+        if (v < 0 && cents != 0) sb.append('-');
+        sb.append(cents / 100).append('.');
+        long c = cents % 100;
+        if (c < 10) sb.append('0');
+        return sb.append(c);
+    }
+
+    // allowed allocation per operation beyond nothing: the retained history entry plus slack for chunk headers
+    static final double MAX_BYTES_PER_OP = AccountType.History.ENTRY_BYTES + 8;
+
+    /*
+     * --bench-hotpath: cycles deposit / withdraw / transfer-out on a throwaway card through the pooled
+     * path and reports throughput and the bytes this thread allocated per operation. "FAIL" if that
+     * exceeds maxBytesPerOp; NaN means MAX_BYTES_PER_OP, checked only while no listener is subscribed.
+     */
+    static String bench(int ops, double maxBytesPerOp) {
+        String card = "BENCH" + System.nanoTime(), type = "Savings";
+        LoginScreen.ACCOUNT_MODELS.put(card, new ATMImplementation(card, "0000", 1e9, 1e9, true));
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        run(card, type, Math.min(ops, 300_000)); // warm-up: JIT, thread-locals, first history chunks
+        long b0 = mx.getThreadAllocatedBytes(tid);
+        long t0 = System.nanoTime();
+        int failed = run(card, type, ops);
+        long nanos = System.nanoTime() - t0;
+        long bytes = mx.getThreadAllocatedBytes(tid) - b0;
+        double perOp = bytes / (double) ops;
+        boolean checked = !Double.isNaN(maxBytesPerOp) || !AccountEvents.active();
+        double limit = Double.isNaN(maxBytesPerOp) ? MAX_BYTES_PER_OP : maxBytesPerOp;
+        return String.format("%s Hot path: %d ops in %d ms (%.0f ops/s), %.2f bytes/op (%d of them the retained history entry; %s),"
+                        + " %d rejected, listeners %s",
+                checked && perOp > limit ? "FAIL" : "PASS", ops, nanos / 1_000_000, ops * 1e9 / nanos, perOp,
+                AccountType.History.ENTRY_BYTES, checked ? String.format("limit %.2f", limit) : "not checked", failed,
+                AccountEvents.active() ? "active (run with --no-read-models and without --notify for the allocation-free figure)" : "none");
+    }
+
+    private static int run(String card, String type, int ops) {
+        ATMImplementation impl = LoginScreen.ACCOUNT_MODELS.get(card);
+        String pin = impl == null ? null : impl.pin();
+        int failed = 0;
+        for (int i = 0; i < ops; i++) {
+            Command c = command();
+            switch (i % 3) {
+                case 0: c.set(AccountOp.DEPOSIT, card, pin, type, 0.02); break;
+                case 1: c.set(AccountOp.WITHDRAW, card, pin, type, 0.01); break;
+                default: c.set(AccountOp.TRANSFER_OUT, card, pin, type, 0.01); break;
+            }
+            if (!execute(c).ok()) failed++;
+        }
+        return failed;
+    }
+}
+
+/* ---------- Tiered account storage ---------- */
+/**
+ * LoginScreen.ACCOUNT_MODELS: a bounded hot tier of live card objects over a cold tier of
+ * serialized records kept outside the heap.
+ * - hot: ConcurrentHashMap; a hit sets the entry's reference bit and allocates nothing
+ * - eviction: CLOCK (second-chance LRU) once more than `capacity` cards are hot; cards with
+ *   prepared transfers are skipped
+ * - cold: ColdTier, records in power-of-two slots of a data file, found through a memory-mapped index
+ * - get() faults a cold card back in (login, transfers, control port); scans (values(): settlement,
+ *   snapshots, interest runs) decode cold cards without promoting them, so they do not flush the
+ *   working set. Evictions pause while a scan runs, so every card is visited exactly once.
+ * An evicted or scanned object may still be in use (a GUI session, a prepared transfer). Those are
+ * tracked weakly: faulting the card in again returns the same instance, and a write to a retired
+ * instance is queued and written back to its cold record.
+ * Capacity is unbounded unless --hot-cards is given; without eviction nothing is ever written out.
+ */
+class TieredAccountStore extends AbstractMap<String, ATMImplementation> {
+    private static final int STRIPES = 64;
+    private static final Cleaner CLEANER = Cleaner.create(); // ends scans whose iterator was dropped half-way
+
+    private static final class Slot {
+        final ATMImplementation impl;
+        volatile boolean referenced = true;
+
+        Slot(ATMImplementation impl) { this.impl = impl; }
+    }
+
+    private static final class RetiredRef extends WeakReference<ATMImplementation> {
+        final String card;
+
+        RetiredRef(ATMImplementation impl, ReferenceQueue<ATMImplementation> q) {
+            super(impl, q);
+            this.card = impl.getCardNumber();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Slot> hot = new ConcurrentHashMap<>();
+    private final Object[] stripes = new Object[STRIPES];
+    private volatile int capacity = Integer.MAX_VALUE;
+    private volatile ColdTier cold;
+
+    // CLOCK ring over hot cards (maintained only while bounded)
+    private final Object clockLock = new Object();
+    private String[] clock = new String[1024];
+    private int clockLen, hand;
+    private int[] freePos = new int[64];
+    private int freeCount;
+
+    private final AtomicInteger scans = new AtomicInteger();
+    private final Queue<String> deferredRemovals = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<String, RetiredRef> retired = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ATMImplementation> collected = new ReferenceQueue<>();
+    private final BlockingQueue<ATMImplementation> writeBacks = new LinkedBlockingQueue<>();
+    private Thread writer;
+
+    private final LongAdder hits = new LongAdder(), faults = new LongAdder(), softFaults = new LongAdder(),
+            evictions = new LongAdder(), written = new LongAdder(), faultNanos = new LongAdder();
+    private final AtomicLong maxFaultNanos = new AtomicLong();
+
+    TieredAccountStore() {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Object();
+    }
+
+    private Object stripe(String card) { return stripes[(card.hashCode() & 0x7fffffff) % STRIPES]; }
+
+    private boolean bounded() { return capacity != Integer.MAX_VALUE; }
+
+    /* --hot-cards: bound the hot tier; cards beyond it move to a cold store under atm.store.dir (or the temp dir). */
+    void setCapacity(int n) throws IOException {
+        if (n <= 0) throw new IllegalArgumentException("hot card capacity must be positive");
+        synchronized (this) {
+            if (cold == null) {
+                cold = new ColdTier(Paths.get(System.getProperty("atm.store.dir", System.getProperty("java.io.tmpdir"))));
+                writer = new Thread(this::writeBackLoop, "store-writeback");
+                writer.setDaemon(true);
+                writer.start();
+            }
+        }
+        synchronized (clockLock) {
+            capacity = n;
+            clockLen = 0;
+            hand = 0;
+            freeCount = 0;
+            for (String card : hot.keySet()) clockAdd(card);
+        }
+        evictIfNeeded();
+    }
+
+    // called by a card object that changed after it was written to the cold tier (never blocks)
+    static void retiredWrite(ATMImplementation impl) {
+        if (impl != null) LoginScreen.ACCOUNT_MODELS.writeBacks.offer(impl);
+    }
+
+    /* ---- Map ---- */
+
+    @Override
+    public ATMImplementation get(Object key) {
+        if (!(key instanceof String)) return null;
+        Slot s = hot.get(key);
+        if (s != null) {
+            if (!s.referenced) s.referenced = true;
+            hits.increment();
+            return s.impl;
+        }
+        return cold == null ? null : faultIn((String) key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (!(key instanceof String)) return false;
+        ColdTier c = cold;
+        return hot.containsKey(key) || (c != null && c.contains((String) key));
+    }
+
+    @Override
+    public int size() {
+        ColdTier c = cold;
+        return hot.size() + (c == null ? 0 : c.count() - deferredRemovals.size());
+    }
+
+    // the previous value is reported only if it was hot
+    @Override
+    public ATMImplementation put(String card, ATMImplementation impl) {
+        Slot old;
+        synchronized (stripe(card)) {
+            old = hot.put(card, new Slot(impl));
+            retired.remove(card); // a replaced instance must not come back on the next fault
+            if (old == null) {
+                forgetCold(card);
+                if (bounded()) clockAdd(card);
+            }
+        }
+        evictIfNeeded();
+        return old == null ? null : old.impl;
+    }
+
+    // new cards go straight to the cold tier while the hot tier is full (bulk import)
+    @Override
+    public ATMImplementation putIfAbsent(String card, ATMImplementation impl) {
+        synchronized (stripe(card)) {
+            Slot s = hot.get(card);
+            if (s != null) return s.impl;
+            ColdTier c = cold;
+            if (c != null && c.contains(card)) return peek(card);
+            if (c != null && hot.size() >= capacity && scans.get() == 0) {
+                try {
+                    track(impl);
+                    c.write(card, serialize(impl));
+                    return null;
+                } catch (IOException ex) {
+                    System.err.println("Cold store write failed, keeping " + card + " hot: " + ex.getMessage());
+                }
+            }
+            hot.put(card, new Slot(impl));
+            if (bounded()) clockAdd(card);
+        }
+        evictIfNeeded();
+        return null;
+    }
+
+    @Override
+    public Set<Entry<String, ATMImplementation>> entrySet() {
+        return new AbstractSet<Entry<String, ATMImplementation>>() {
+            @Override
+            public Iterator<Entry<String, ATMImplementation>> iterator() {
+                Iterator<ATMImplementation> it = values().iterator();
+                return new Iterator<Entry<String, ATMImplementation>>() {
+                    public boolean hasNext() { return it.hasNext(); }
+                    public Entry<String, ATMImplementation> next() {
+                        ATMImplementation impl = it.next();
+                        return new SimpleImmutableEntry<>(impl.getCardNumber(), impl);
+                    }
+                };
+            }
+
+            @Override
+            public int size() { return TieredAccountStore.this.size(); }
+        };
+    }
+
+    @Override
+    public Collection<ATMImplementation> values() {
+        return new AbstractCollection<ATMImplementation>() {
+            @Override
+            public Iterator<ATMImplementation> iterator() { return new Scan(); }
+
+            @Override
+            public int size() { return TieredAccountStore.this.size(); }
+        };
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                ColdTier c = cold;
+                if (c == null) return hot.keySet().iterator();
+                Iterator<String> h = new ArrayList<>(hot.keySet()).iterator();
+                Iterator<String> k = c.keys().iterator();
+                return new Iterator<String>() {
+                    public boolean hasNext() { return h.hasNext() || k.hasNext(); }
+                    public String next() { return h.hasNext() ? h.next() : k.next(); }
+                };
+            }
+
+            @Override
+            public boolean contains(Object o) { return containsKey(o); }
+
+            @Override
+            public int size() { return TieredAccountStore.this.size(); }
+        };
+    }
+
+    /*
+     * Hot cards first, then cold ones decoded without promotion. Evictions and cold removals wait
+     * until no scan is running, so a card cannot move from hot to cold behind the iterator; cards
+     * faulted in during the scan are recognised by their hot slot and skipped if already visited.
+     */
+    private final class Scan implements Iterator<ATMImplementation> {
+        private final Iterator<Slot> hotIt = hot.values().iterator();
+        private final Set<String> visited;
+        private final ColdTier c = cold;
+        private List<String> batch = Collections.emptyList();
+        private int batchPos, cursor;
+        private ATMImplementation next;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        Scan() {
+            scans.incrementAndGet();
+            AtomicBoolean d = done;
+            CLEANER.register(this, () -> { if (d.compareAndSet(false, true)) endScan(); });
+            visited = c == null ? null : new HashSet<>();
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            if (hotIt.hasNext()) {
+                next = hotIt.next().impl;
+                if (visited != null) visited.add(next.getCardNumber());
+                return;
+            }
+            while (c != null) {
+                while (batchPos < batch.size()) {
+                    String card = batch.get(batchPos++);
+                    if (visited.contains(card)) continue;
+                    next = peek(card);
+                    if (next != null) return;
+                }
+                if (cursor < 0) break;
+                batch = new ArrayList<>(4096);
+                batchPos = 0;
+                cursor = c.keys(cursor, 4096, batch);
+            }
+            finish();
+        }
+
+        private void finish() {
+            if (done.compareAndSet(false, true)) endScan();
+        }
+
+        public boolean hasNext() { return next != null; }
+
+        public ATMImplementation next() {
+            if (next == null) throw new NoSuchElementException();
+            ATMImplementation n = next;
+            advance();
+            return n;
+        }
+    }
+
+    private void endScan() {
+        if (scans.decrementAndGet() > 0) return;
+        String card;
+        while ((card = deferredRemovals.poll()) != null) {
+            synchronized (stripe(card)) {
+                if (hot.containsKey(card)) cold.remove(card);
+            }
+        }
+        evictIfNeeded();
+    }
+
+    /* ---- tier moves ---- */
+
+    private ATMImplementation faultIn(String card) {
+        long t0 = System.nanoTime();
+        ATMImplementation impl;
+        synchronized (stripe(card)) {
+            Slot s = hot.get(card);
+            if (s != null) return s.impl;
+            impl = alive(card);
+            if (impl != null) {
+                softFaults.increment();
+            } else {
+                try {
+                    impl = cold.read(card);
+                } catch (IOException ex) {
+                    System.err.println("Cold store read failed for " + card + ": " + ex.getMessage());
+                    return null;
+                }
+                if (impl == null) return null;
+                faults.increment();
+            }
+            impl.setRetired(false);
+            retired.remove(card);
+            hot.put(card, new Slot(impl));
+            if (bounded()) clockAdd(card);
+            forgetCold(card);
+        }
+        long dt = System.nanoTime() - t0;
+        faultNanos.add(dt);
+        maxFaultNanos.accumulateAndGet(dt, Math::max);
+        evictIfNeeded();
+        return impl;
+    }
+
+    // the record of a card that is hot again is dropped now, or once running scans are done
+    private void forgetCold(String card) {
+        ColdTier c = cold;
+        if (c == null) return;
+        if (scans.get() > 0) deferredRemovals.add(card);
+        else c.remove(card);
+    }
+
+    // every card exactly once; tier moves are held off only while the keys are copied, not while the caller walks them
+    List<String> cardNumbers() {
+        scans.incrementAndGet();
+        try {
+            // hot first: an eviction writes the cold record before leaving the hot map, and a fault-in's
+            // cold removal waits for endScan, so a card that moves meanwhile is seen at least once
+            Set<String> keys = new LinkedHashSet<>(hot.keySet());
+            ColdTier c = cold;
+            if (c != null) keys.addAll(c.keys());
+            return new ArrayList<>(keys);
+        } finally {
+            endScan();
+        }
+    }
+
+    /*
+     * Look a card up without promoting it: the hot or still-referenced instance if there is one,
+     * else a decoded copy that stays cold (writes to it are written back). For scans and for
+     * read-mostly lookups (admin lists, projections, alert contacts) that must not flush the working set.
+     */
+    ATMImplementation peek(String card) {
+        if (cold == null) {
+            Slot s = hot.get(card);
+            return s == null ? null : s.impl;
+        }
+        synchronized (stripe(card)) {
+            Slot s = hot.get(card);
+            if (s != null) return s.impl;
+            ATMImplementation impl = alive(card);
+            if (impl != null) return impl;
+            try {
+                impl = cold.read(card);
+            } catch (IOException ex) {
+                System.err.println("Cold store read failed for " + card + ": " + ex.getMessage());
+                return null;
+            }
+            if (impl != null) track(impl);
+            return impl;
+        }
+    }
+
+    private ATMImplementation alive(String card) {
+        RetiredRef r = retired.get(card);
+        return r == null ? null : r.get();
+    }
+
+    private void track(ATMImplementation impl) {
+        impl.setRetired(true);
+        retired.put(impl.getCardNumber(), new RetiredRef(impl, collected));
+        Reference<? extends ATMImplementation> gone;
+        while ((gone = collected.poll()) != null) retired.remove(((RetiredRef) gone).card, gone);
+    }
+
+    private void evictIfNeeded() {
+        if (!bounded()) return;
+        while (hot.size() > capacity && scans.get() == 0) {
+            String victim = clockVictim();
+            if (victim == null) return;
+            try {
+                if (!evict(victim)) clockAdd(victim);
+            } catch (IOException ex) {
+                System.err.println("Eviction of " + victim + " failed: " + ex.getMessage());
+                clockAdd(victim);
+                return;
+            }
+        }
+    }
+
+    private boolean evict(String card) throws IOException {
+        synchronized (stripe(card)) {
+            Slot s = hot.get(card);
+            if (s == null) return true;
+            if (s.impl.hasReservations()) return false;
+            // retire first: a write racing with serialization is then queued for write-back
+            track(s.impl);
+            cold.write(card, serialize(s.impl));
+            hot.remove(card);
+            evictions.increment();
+            return true;
+        }
+    }
+
+    private void writeBackLoop() {
+        while (true) {
+            ATMImplementation impl;
+            try {
+                impl = writeBacks.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            String card = impl.getCardNumber();
+            synchronized (stripe(card)) {
+                if (hot.containsKey(card)) continue; // hot again: written on its next eviction
+                try {
+                    cold.write(card, serialize(impl));
+                    written.increment();
+                } catch (IOException ex) {
+                    System.err.println("Write-back of " + card + " failed: " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private static byte[] serialize(ATMImplementation impl) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(buf)) {
+            impl.writeTo(out);
+        }
+        return buf.toByteArray();
+    }
+
+    /* ---- CLOCK ---- */
+
+    private void clockAdd(String card) {
+        synchronized (clockLock) {
+            int pos;
+            if (freeCount > 0) {
+                pos = freePos[--freeCount];
+            } else {
+                if (clockLen == clock.length) clock = Arrays.copyOf(clock, clockLen * 2);
+                pos = clockLen++;
+            }
+            clock[pos] = card;
+        }
+    }
+
+    private void clockFree(int pos) {
+        clock[pos] = null;
+        if (freeCount == freePos.length) freePos = Arrays.copyOf(freePos, freeCount * 2);
+        freePos[freeCount++] = pos;
+    }
+
+    // sweep: referenced cards get a second chance, unreferenced ones are evicted
+    private String clockVictim() {
+        synchronized (clockLock) {
+            for (int steps = 0; steps <= 2 * clockLen; steps++) {
+                if (hand >= clockLen) hand = 0;
+                int pos = hand++;
+                String card = clock[pos];
+                if (card == null) continue;
+                Slot s = hot.get(card);
+                if (s == null) {
+                    clockFree(pos);
+                } else if (s.referenced) {
+                    s.referenced = false;
+                } else if (!s.impl.hasReservations()) {
+                    clockFree(pos);
+                    return card;
+                }
+            }
+            return null;
+        }
+    }
+
+    public String status() {
+        ColdTier c = cold;
+        long h = hits.sum(), f = faults.sum(), sf = softFaults.sum();
+        long lookups = h + f + sf;
+        return "hot=" + hot.size() + (bounded() ? "/" + capacity : "") + " cold=" + (c == null ? 0 : c.count())
+                + String.format(" hitRatio=%.2f%%", lookups == 0 ? 100.0 : 100.0 * h / lookups)
+                + " faults=" + f + " softFaults=" + sf + " evictions=" + evictions.sum() + " writeBacks=" + written.sum()
+                + String.format(" faultAvgUs=%.1f faultMaxUs=%.1f", f + sf == 0 ? 0 : faultNanos.sum() / 1e3 / (f + sf),
+                        maxFaultNanos.get() / 1e3)
+                + (c == null ? "" : String.format(" coldFileMB=%.1f", c.fileBytes() / 1e6));
+    }
+}
+
+/*
+ * Cold records. Each card's record sits in a power-of-two slot of a data file (rewritten in place
+ * while it fits, otherwise moved and the old slot reused); an open-addressing index in a
+ * memory-mapped file maps the card, packed into a long, to its slot. Both files are scratch space
+ * deleted on exit. Callers serialize per card (TieredAccountStore stripes); the index is guarded here.
+ */
+class ColdTier {
+    private static final int MIN_CLASS = 6;          // 64-byte slots and up
+    private static final long EMPTY = 0, TOMBSTONE = -1, NONE = -1;
+    private static final int MAX_SLOTS = 1 << 27;    // 2 GB of index
+
+    private final Path dir;
+    private final FileChannel data;
+    private long end;
+    private final long[][] free = new long[48][];
+    private final int[] freeCount = new int[48];
+
+    private FileChannel indexFile;
+    private MappedByteBuffer index;
+    private int slots, used, tombstones;
+    private final Map<String, Long> oddKeys = new HashMap<>(); // cards that do not pack into a long
+
+    ColdTier(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        this.dir = dir;
+        data = FileChannel.open(Files.createTempFile(dir, "atm-cold-", ".dat"), StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        mapIndex(1 << 16);
+    }
+
+    private void mapIndex(int n) throws IOException {
+        FileChannel ch = FileChannel.open(Files.createTempFile(dir, "atm-cold-", ".idx"), StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        MappedByteBuffer old = index;
+        int oldSlots = slots;
+        index = ch.map(FileChannel.MapMode.READ_WRITE, 0, (long) n * 16);
+        slots = n;
+        used = 0;
+        tombstones = 0;
+        for (int i = 0; old != null && i < oldSlots; i++) {
+            long k = old.getLong(i * 16);
+            if (k != EMPTY && k != TOMBSTONE) insert(k, old.getLong(i * 16 + 8));
+        }
+        if (indexFile != null) indexFile.close();
+        indexFile = ch;
+    }
+
+    // digits only, up to 17 of them: length in the top bits keeps leading zeros apart
+    static long pack(String card) {
+        int len = card.length();
+        if (len == 0 || len > 17) return EMPTY;
+        long v = 0;
+        for (int i = 0; i < len; i++) {
+            char ch = card.charAt(i);
+            if (ch < '0' || ch > '9') return EMPTY;
+            v = v * 10 + (ch - '0');
+        }
+        return ((long) len << 57) | v;
+    }
+
+    static String unpack(long k) {
+        int len = (int) (k >>> 57);
+        String digits = Long.toString(k & ((1L << 57) - 1));
+        StringBuilder sb = new StringBuilder(len);
+        for (int i = digits.length(); i < len; i++) sb.append('0');
+        return sb.append(digits).toString();
+    }
+
+    private int home(long k) {
+        long h = k * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (slots - 1);
+    }
+
+    private long lookup(long k) {
+        for (int i = home(k); ; i = (i + 1) & (slots - 1)) {
+            long e = index.getLong(i * 16);
+            if (e == EMPTY) return NONE;
+            if (e == k) return index.getLong(i * 16 + 8);
+        }
+    }
+
+    private void insert(long k, long v) {
+        int target = -1;
+        for (int i = home(k); ; i = (i + 1) & (slots - 1)) {
+            long e = index.getLong(i * 16);
+            if (e == k) {
+                index.putLong(i * 16 + 8, v);
+                return;
+            }
+            if (e == TOMBSTONE && target < 0) target = i;
+            if (e == EMPTY) {
+                if (target < 0) target = i;
+                else tombstones--;
+                index.putLong(target * 16, k);
+                index.putLong(target * 16 + 8, v);
+                used++;
+                return;
+            }
+        }
+    }
+
+    private long delete(long k) {
+        for (int i = home(k); ; i = (i + 1) & (slots - 1)) {
+            long e = index.getLong(i * 16);
+            if (e == EMPTY) return NONE;
+            if (e == k) {
+                index.putLong(i * 16, TOMBSTONE);
+                used--;
+                tombstones++;
+                return index.getLong(i * 16 + 8);
+            }
+        }
+    }
+
+    private synchronized long find(String card) {
+        long k = pack(card);
+        if (k == EMPTY) return oddKeys.getOrDefault(card, NONE);
+        return lookup(k);
+    }
+
+    synchronized boolean contains(String card) { return find(card) != NONE; }
+
+    synchronized int count() { return used + oddKeys.size(); }
+
+    synchronized long fileBytes() { return end; }
+
+    private synchronized void put(String card, long v) throws IOException {
+        long k = pack(card);
+        if (k == EMPTY) {
+            oddKeys.put(card, v);
+            return;
+        }
+        if (lookup(k) == NONE && (long) (used + tombstones + 1) * 10 > (long) slots * 7) {
+            int n = tombstones > used / 2 ? slots : slots * 2;
+            if (n > MAX_SLOTS) throw new IOException("cold index full");
+            mapIndex(n);
+        }
+        insert(k, v);
+    }
+
+    private static int classFor(int bytes) {
+        return Math.max(MIN_CLASS, 32 - Integer.numberOfLeadingZeros(bytes - 1));
+    }
+
+    private long allocate(int cls) {
+        if (freeCount[cls] > 0) return free[cls][--freeCount[cls]];
+        long at = end;
+        end += 1L << cls;
+        return at;
+    }
+
+    private void release(long v) {
+        int cls = (int) (v & 63);
+        if (free[cls] == null) free[cls] = new long[16];
+        if (freeCount[cls] == free[cls].length) free[cls] = Arrays.copyOf(free[cls], freeCount[cls] * 2);
+        free[cls][freeCount[cls]++] = v >>> 6;
+    }
+
+    void write(String card, byte[] rec) throws IOException {
+        int need = rec.length + 4;
+        long at;
+        int cls;
+        synchronized (this) {
+            long cur = find(card);
+            if (cur != NONE && need <= 1 << (cur & 63)) {
+                at = cur >>> 6;
+                cls = (int) (cur & 63);
+            } else {
+                if (cur != NONE) release(cur);
+                cls = classFor(need);
+                at = allocate(cls);
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(need);
+        buf.putInt(rec.length).put(rec).flip();
+        for (long pos = at; buf.hasRemaining(); ) pos += data.write(buf, pos);
+        put(card, (at << 6) | cls);
+    }
+
+    ATMImplementation read(String card) throws IOException {
+        long v = find(card);
+        if (v == NONE) return null;
+        long at = v >>> 6;
+        ByteBuffer len = ByteBuffer.allocate(4);
+        while (len.hasRemaining()) if (data.read(len, at + len.position()) < 0) throw new EOFException();
+        ByteBuffer rec = ByteBuffer.allocate(len.getInt(0));
+        while (rec.hasRemaining()) if (data.read(rec, at + 4 + rec.position()) < 0) throw new EOFException();
+        return ATMImplementation.readFrom(new DataInputStream(new ByteArrayInputStream(rec.array())));
+    }
+
+    synchronized void remove(String card) {
+        long k = pack(card);
+        Long odd = k == EMPTY ? oddKeys.remove(card) : null;
+        long v = k == EMPTY ? (odd == null ? NONE : odd) : delete(k);
+        if (v != NONE) release(v);
+    }
+
+    /* Up to max cards from index position `from` on; returns the next position, or -1 when done. */
+    synchronized int keys(int from, int max, List<String> out) {
+        int i = from;
+        for (; i < slots && out.size() < max; i++) {
+            long e = index.getLong(i * 16);
+            if (e != EMPTY && e != TOMBSTONE) out.add(unpack(e));
+        }
+        if (i < slots) return i;
+        out.addAll(oddKeys.keySet());
+        return -1;
+    }
+
+    List<String> keys() {
+        List<String> all = new ArrayList<>();
+        for (int pos = 0; pos >= 0; ) pos = keys(pos, 4096, all);
+        return all;
+    }
+}
+
+/* ---------- Customer notifications ---------- */
+/* One message to one address; `events` is how many account events it covers. */
+class Notification {
+    enum Channel { SMS, EMAIL }
+
+    final String card;
+    final Channel channel;
+    final String address;
+    final String subject;
+    final String body;
+    final int events;
+    final long createdMillis = System.currentTimeMillis();
+
+    Notification(String card, Channel channel, String address, String subject, String body, int events) {
+        this.card = card;
+        this.channel = channel;
+        this.address = address;
+        this.subject = subject;
+        this.body = body;
+        this.events = events;
+    }
+}
+
+interface NotificationSink {
+    String name();
+
+    default boolean accepts(Notification.Channel channel) { return true; }
+
+    // delivers the whole batch or throws; a failed batch is retried as a unit
+    void deliver(List<Notification> batch) throws IOException;
+}
+
+/* Appends every alert to an outbox file, one tab-separated line per message, forced once per batch. */
+class FileNotificationSink implements NotificationSink {
+    private final Path file;
+
+    FileNotificationSink(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        this.file = dir.resolve("outbox.log");
+    }
+
+    @Override
+    public String name() { return "file"; }
+
+    @Override
+    public void deliver(List<Notification> batch) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Notification n : batch) {
+            sb.append(Instant.ofEpochMilli(n.createdMillis)).append('\t').append(n.channel).append('\t')
+              .append(n.address).append('\t').append(n.card).append('\t').append(n.subject).append('\t')
+              .append(n.body.replace('\n', ' ')).append('\n');
+        }
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining()) ch.write(buf);
+            ch.force(false);
+        }
+    }
+}
+
+/*
+ * Stands in for an SMTP relay: each email becomes an RFC 5322 message in mail/ (written to a temp
+ * name, then moved, so a reader never sees half a message). atm.notify.smtp.failRate (0..1) makes
+ * that share of batches fail as a relay would with 421, to exercise retries.
+ */
+class MockSmtpSink implements NotificationSink {
+    private static final DateTimeFormatter DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneId.systemDefault());
+    private final Path dir;
+    private final double failRate = Double.parseDouble(System.getProperty("atm.notify.smtp.failRate", "0"));
+    private long seq = 0;
+
+    MockSmtpSink(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir.resolve("mail"));
+    }
+
+    @Override
+    public String name() { return "smtp-mock"; }
+
+    @Override
+    public boolean accepts(Notification.Channel channel) { return channel == Notification.Channel.EMAIL; }
+
+    @Override
+    public void deliver(List<Notification> batch) throws IOException {
+        if (failRate > 0 && ThreadLocalRandom.current().nextDouble() < failRate) {
+            throw new IOException("421 Service not available (injected)");
+        }
+        for (Notification n : batch) {
+            String msg = "From: ATM Alerts <alerts@atm.local>\r\n"
+                    + "To: " + n.address + "\r\n"
+                    + "Subject: " + n.subject + "\r\n"
+                    + "Date: " + DATE.format(Instant.ofEpochMilli(n.createdMillis)) + "\r\n"
+                    + "X-ATM-Card: " + Notifier.mask(n.card) + "\r\n"
+                    + "Content-Type: text/plain; charset=UTF-8\r\n\r\n"
+                    + n.body.replace("\n", "\r\n") + "\r\n";
+            String name = n.createdMillis + "-" + (++seq);
+            Path tmp = dir.resolve(name + ".tmp");
+            Files.write(tmp, msg.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, dir.resolve(name + ".eml"), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
+
+/**
+ * Transaction alerts to the phone and email on a card's profile: withdrawals, transfers in and
+ * out, loan credits and PIN lockouts.
+ * - onEvent() filters and offers to a bounded queue; when the queue is full the alert is dropped
+ *   and counted, so an account operation never waits on notification
+ * - a dispatcher thread coalesces per card: amounts under SMALL_AMOUNT are held for COALESCE_MS and
+ *   go out as one summary; a large amount, a loan or a lockout flushes the card's alerts at once
+ * - each sink has its own bounded outbox and delivery thread, which sends batches of up to BATCH and
+ *   retries a failed batch with exponential backoff and jitter, giving up after MAX_ATTEMPTS
+ * Followers replay events but send nothing: only the node that committed an operation alerts on it.
+ * Cards whose profile has neither a phone nor an email are skipped.
+ */
+class Notifier implements AccountListener {
+    static final int QUEUE_CAPACITY = 65_536;
+    static final int OUTBOX_CAPACITY = 16_384;
+    static final int BATCH = 100;
+    static final int MAX_LINES = 5; // per coalesced alert; earlier events are summarized
+    static final double SMALL_AMOUNT = 2000;
+    static final long COALESCE_MS = Long.getLong("atm.notify.coalesceMs", 10_000);
+    static final int MAX_ATTEMPTS = 6;
+    static final long BACKOFF_BASE_MS = 500, BACKOFF_MAX_MS = 60_000;
+    private static final Path DIR = Paths.get(System.getProperty("atm.notify.dir",
+            System.getProperty("user.home") + File.separator + "ATMNotifications"));
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm").withZone(ZoneId.systemDefault());
+    private static final AccountEvent STOP = AccountEvent.forCard("", AccountOp.NOTE, null);
+
+    private static volatile Notifier instance;
+
+    private static final class Outbox {
+        final NotificationSink sink;
+        final BlockingQueue<Notification> queue = new ArrayBlockingQueue<>(OUTBOX_CAPACITY);
+        final LongAdder delivered = new LongAdder(), retries = new LongAdder(), failed = new LongAdder(),
+                dropped = new LongAdder();
+        volatile long maxLatencyMs; // event to delivery
+        volatile boolean busy;      // a batch is being delivered or retried
+
+        Outbox(NotificationSink sink) { this.sink = sink; }
+    }
+
+    // alerts held for one card until its deadline or an urgent event
+    private static final class Digest {
+        final String card;
+        final long deadline;
+        final List<AccountEvent> events = new ArrayList<>(4);
+
+        Digest(String card, long deadline) {
+            this.card = card;
+            this.deadline = deadline;
+        }
+    }
+
+    private final BlockingQueue<AccountEvent> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final List<Outbox> outboxes = new ArrayList<>();
+    private final LongAdder offered = new LongAdder(), overflowed = new LongAdder();
+    private final AtomicLong alerts = new AtomicLong(), coalesced = new AtomicLong(), noContact = new AtomicLong();
+    private Thread dispatcher;
+
+    // dispatcher-thread state: insertion order is deadline order, since every digest waits COALESCE_MS
+    private final LinkedHashMap<String, Digest> pending = new LinkedHashMap<>();
+
+    /* Sinks by name, comma-separated: file, smtp-mock. */
+    static List<NotificationSink> sinks(String spec) throws IOException {
+        List<NotificationSink> sinks = new ArrayList<>();
+        for (String name : spec.split(",")) {
+            switch (name.trim()) {
+                case "file": sinks.add(new FileNotificationSink(DIR)); break;
+                case "smtp-mock": sinks.add(new MockSmtpSink(DIR)); break;
+                default: throw new IllegalArgumentException("unknown notification sink: " + name);
+            }
+        }
+        return sinks;
+    }
+
+    public static synchronized Notifier start(List<NotificationSink> sinks) {
+        if (instance != null) return instance;
+        Notifier n = new Notifier();
+        for (NotificationSink s : sinks) {
+            Outbox o = new Outbox(s);
+            n.outboxes.add(o);
+            Thread t = new Thread(() -> n.deliverLoop(o), "notify-" + s.name());
+            t.setDaemon(true);
+            t.start();
+        }
+        n.dispatcher = new Thread(n::dispatchLoop, "notify-dispatcher");
+        n.dispatcher.setDaemon(true);
+        n.dispatcher.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(n::shutdown, "notify-shutdown"));
+        AccountEvents.subscribe(n);
+        instance = n;
+        return n;
+    }
+
+    static Notifier get() { return instance; }
+
+    @Override
+    public void onEvent(AccountEvent e) {
+        switch (e.op) {
+            case WITHDRAW:
+            case TRANSFER_OUT:
+            case TRANSFER_IN:
+            case LOCKED:
+                break;
+            default:
+                return;
+        }
+        if (ReplicationNode.isReadOnly()) return;
+        if (queue.offer(e)) offered.increment();
+        else overflowed.increment();
+    }
+
+    public String status() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("events=").append(offered.sum()).append(" dropped=").append(overflowed.sum())
+          .append(" alerts=").append(alerts.get()).append(" coalesced=").append(coalesced.get())
+          .append(" noContact=").append(noContact.get()).append(" queued=").append(queue.size());
+        for (Outbox o : outboxes) {
+            sb.append(" | ").append(o.sink.name()).append(": delivered=").append(o.delivered.sum())
+              .append(" retries=").append(o.retries.sum()).append(" failed=").append(o.failed.sum())
+              .append(" dropped=").append(o.dropped.sum()).append(" backlog=").append(o.queue.size())
+              .append(" maxLatencyMs=").append(o.maxLatencyMs);
+        }
+        return sb.toString();
+    }
+
+    /* ---- dispatcher ---- */
+
+    private void dispatchLoop() {
+        List<AccountEvent> batch = new ArrayList<>(1024);
+        while (true) {
+            try {
+                long wait = 1000;
+                if (!pending.isEmpty()) {
+                    wait = Math.max(0, pending.values().iterator().next().deadline - System.currentTimeMillis());
+                }
+                AccountEvent first = queue.poll(wait, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, 1023);
+                }
+                long now = System.currentTimeMillis();
+                for (AccountEvent e : batch) {
+                    if (e == STOP) {
+                        for (Digest d : pending.values()) flush(d);
+                        pending.clear();
+                        return;
+                    }
+                    absorb(e, now);
+                }
+                batch.clear();
+                for (Iterator<Digest> it = pending.values().iterator(); it.hasNext(); ) {
+                    Digest d = it.next();
+                    if (d.deadline > now) break;
+                    it.remove();
+                    flush(d);
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } catch (RuntimeException ex) {
+                batch.clear();
+                System.err.println("Notification dispatch failed: " + ex);
+            }
+        }
+    }
+
+    private void absorb(AccountEvent e, long now) {
+        Digest d = pending.get(e.card);
+        if (d == null) {
+            d = new Digest(e.card, now + COALESCE_MS);
+            pending.put(e.card, d);
+        } else {
+            coalesced.incrementAndGet();
+        }
+        d.events.add(e);
+        if (urgent(e)) {
+            pending.remove(e.card);
+            flush(d);
+        }
+    }
+
+    private static boolean urgent(AccountEvent e) {
+        return e.op == AccountOp.LOCKED || isLoan(e) || e.amount >= SMALL_AMOUNT;
+    }
+
+    private static boolean isLoan(AccountEvent e) {
+        return e.op == AccountOp.TRANSFER_IN && "BankLoan".equals(e.detail);
+    }
+
+    private void flush(Digest d) {
+        ATMImplementation impl = LoginScreen.ACCOUNT_MODELS.peek(d.card);
+        String phone = impl == null ? null : impl.contact("Phone");
+        String email = impl == null ? null : impl.contact("Email");
+        if (phone == null && email == null) {
+            noContact.incrementAndGet();
+            return;
+        }
+        alerts.incrementAndGet();
+        String subject = subject(d);
+        String body = body(d);
+        for (Outbox o : outboxes) {
+            if (phone != null && o.sink.accepts(Notification.Channel.SMS)) {
+                enqueue(o, new Notification(d.card, Notification.Channel.SMS, phone, subject, body, d.events.size()));
+            }
+            if (email != null && o.sink.accepts(Notification.Channel.EMAIL)) {
+                enqueue(o, new Notification(d.card, Notification.Channel.EMAIL, email, subject, body, d.events.size()));
+            }
+        }
+    }
+
+    private static void enqueue(Outbox o, Notification n) {
+        if (!o.queue.offer(n)) o.dropped.increment();
+    }
+
+    /* ---- rendering ---- */
+
+    static String mask(String card) {
+        return card.length() <= 4 ? card : "XX" + card.substring(card.length() - 4);
+    }
+
+    private static String subject(Digest d) {
+        for (AccountEvent e : d.events) if (e.op == AccountOp.LOCKED) return "Card " + mask(d.card) + " locked";
+        if (d.events.size() > 1) return d.events.size() + " transactions on card " + mask(d.card);
+        return "Transaction alert for card " + mask(d.card);
+    }
+
+    private static String body(Digest d) {
+        // the latest events in full (an urgent one is always the last), earlier ones as a total
+        StringBuilder sb = new StringBuilder();
+        int earlier = Math.max(0, d.events.size() - MAX_LINES);
+        if (earlier > 0) {
+            double out = 0, in = 0;
+            for (AccountEvent e : d.events.subList(0, earlier)) {
+                if (e.op == AccountOp.TRANSFER_IN) in += e.amount;
+                else out += e.amount;
+            }
+            sb.append(earlier).append(" earlier: ₹").append(String.format("%.2f", out)).append(" out, ₹")
+              .append(String.format("%.2f", in)).append(" in\n");
+        }
+        for (AccountEvent e : d.events.subList(earlier, d.events.size())) sb.append(describe(e)).append('\n');
+        // latest balance of every account the alert touched
+        Map<String, Double> balances = new TreeMap<>();
+        for (AccountEvent e : d.events) if (e.accountType != null) balances.put(e.accountType, e.balanceAfter);
+        for (Map.Entry<String, Double> b : balances.entrySet()) {
+            sb.append(b.getKey()).append(" balance: ₹").append(String.format("%.2f", b.getValue())).append('\n');
+        }
+        sb.append("Not you? Call your bank to block the card.");
+        return sb.toString();
+    }
+
+    private static String describe(AccountEvent e) {
+        String at = " at " + TIME.format(Instant.ofEpochMilli(e.timeMillis));
+        String amt = "₹" + String.format("%.2f", e.amount);
+        switch (e.op) {
+            case WITHDRAW: return amt + " withdrawn from " + e.accountType + at;
+            case TRANSFER_OUT: return amt + " transferred out of " + e.accountType + at;
+            case TRANSFER_IN:
+                return isLoan(e) ? "Loan of " + amt + " credited to " + e.accountType + at
+                        : amt + " received in " + e.accountType + " from " + mask(e.detail) + at;
+            case LOCKED: return "Card locked after repeated wrong PINs" + at;
+            default: return e.op + at;
+        }
+    }
+
+    /* ---- delivery ---- */
+
+    private void deliverLoop(Outbox o) {
+        List<Notification> batch = new ArrayList<>(BATCH);
+        try {
+            while (true) {
+                batch.add(o.queue.take());
+                o.busy = true;
+                o.queue.drainTo(batch, BATCH - 1);
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        o.sink.deliver(batch);
+                        o.delivered.add(batch.size());
+                        long now = System.currentTimeMillis();
+                        for (Notification n : batch) o.maxLatencyMs = Math.max(o.maxLatencyMs, now - n.createdMillis);
+                        break;
+                    } catch (IOException | RuntimeException ex) {
+                        if (attempt >= MAX_ATTEMPTS) {
+                            o.failed.add(batch.size());
+                            System.err.println("Notification sink " + o.sink.name() + " gave up on " + batch.size()
+                                    + " alerts: " + ex.getMessage());
+                            break;
+                        }
+                        o.retries.increment();
+                        Thread.sleep(backoff(attempt));
+                    }
+                }
+                batch.clear();
+                o.busy = false;
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    // exponential, capped, with jitter so that sinks recovering together are not hit in lockstep
+    static long backoff(int attempt) {
+        long ceiling = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << Math.min(attempt - 1, 20));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    // held alerts go out at once; outboxes get a few seconds to empty
+    private void shutdown() {
+        AccountEvents.unsubscribe(this);
+        try {
+            queue.put(STOP);
+            dispatcher.join(2000);
+            long deadline = System.currentTimeMillis() + 3000;
+            for (Outbox o : outboxes) {
+                while ((o.busy || !o.queue.isEmpty()) && System.currentTimeMillis() < deadline) Thread.sleep(20);
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+}